@@ -2,6 +2,7 @@ import org.gradle.jvm.tasks.Jar
 
 plugins {
     java
+    id("me.champeau.jmh") version "0.7.2"
 }
 
 group = "com.user404_"
@@ -22,14 +23,49 @@ repositories {
 dependencies {
     compileOnly("io.papermc.paper:paper-api:1.21-R0.1-SNAPSHOT")
     compileOnly("com.github.MilkBowl:VaultAPI:1.7")
-    implementation("mysql:mysql-connector-java:8.0.33")
-    implementation("com.zaxxer:HikariCP:5.0.1")
+    // Connector/J 9 and HikariCP 5.1 guard their I/O with locks instead of synchronized, so a
+    // virtual thread waiting on a query doesn't pin its carrier thread
+    implementation("com.mysql:mysql-connector-j:9.1.0")
+    implementation("com.zaxxer:HikariCP:5.1.0")
+
+    testImplementation(platform("org.junit:junit-bom:5.10.2"))
+    testImplementation("org.junit.jupiter:junit-jupiter")
+    testRuntimeOnly("org.junit.platform:junit-platform-launcher")
+
+    // Benchmarks run outside the server: Bukkit/Vault on the classpath, embedded MariaDB, mocks
+    jmh("io.papermc.paper:paper-api:1.21-R0.1-SNAPSHOT")
+    jmh("com.github.MilkBowl:VaultAPI:1.7")
+    jmh("ch.vorburger.mariaDB4j:mariaDB4j:3.1.0")
+    jmh("org.mockito:mockito-core:5.11.0")
 }
 
 tasks.withType<JavaCompile> {
     options.encoding = "UTF-8"
 }
 
+tasks.test {
+    useJUnitPlatform()
+}
+
+// Benchmarks in src/jmh, run with ./gradlew jmh (one class: ./gradlew jmh -Pjmh.includes=DatabaseBenchmark)
+jmh {
+    jmhVersion.set("1.37")
+    // JSON, so the results of two releases can be compared side by side
+    resultFormat.set("JSON")
+    resultsFile.set(layout.buildDirectory.file("results/jmh/results.json"))
+    (findProperty("jmh.includes") as String?)?.let { includes.set(listOf(it)) }
+}
+
+// Several simulated servers against one embedded MariaDB, see ClusterSimulation for the options
+// (./gradlew clusterSimulation -Psim.servers=6 -Psim.tps=5000)
+tasks.register<JavaExec>("clusterSimulation") {
+    group = "verification"
+    description = "Runs the multi-server sync simulation and checks that no money is lost or created."
+    classpath = sourceSets["jmh"].runtimeClasspath
+    mainClass.set("com.user404_.balsync.ClusterSimulation")
+    systemProperties(project.properties.filterKeys { it.startsWith("sim.") })
+}
+
 tasks.jar {
     archiveBaseName.set("BalSync")
 }
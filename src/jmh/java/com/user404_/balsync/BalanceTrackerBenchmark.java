@@ -0,0 +1,97 @@
+package com.user404_.balsync;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Old tracking maps (two ConcurrentHashMap<UUID, Double>) against BalanceTracker.
+ * Run with {@code ./gradlew jmh}; add {@code profilers.add("gc")} to the jmh block to see the
+ * allocation per update. The retained heap of both is printed once per trial.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BalanceTrackerBenchmark {
+    @Param({"1000", "100000"})
+    public int players;
+
+    private UUID[] uuids;
+    private Map<UUID, Double> lastKnownBalances;
+    private Map<UUID, Double> lastKnownDbBalances;
+    private BalanceTracker tracker;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        uuids = new UUID[players];
+        for (int i = 0; i < players; i++) {
+            uuids[i] = UUID.randomUUID();
+        }
+
+        long before = usedHeap();
+        lastKnownBalances = new ConcurrentHashMap<>();
+        lastKnownDbBalances = new ConcurrentHashMap<>();
+        for (UUID uuid : uuids) {
+            lastKnownBalances.put(uuid, 100.0);
+            lastKnownDbBalances.put(uuid, 100.0);
+        }
+        long maps = usedHeap() - before;
+
+        before = usedHeap();
+        tracker = new BalanceTracker();
+        for (UUID uuid : uuids) {
+            tracker.setBoth(uuid, 100.0);
+        }
+        long primitive = usedHeap() - before;
+
+        System.out.printf("%n%d players: ConcurrentHashMap x2 = %.1f MB, BalanceTracker = %.1f MB%n",
+                players, maps / 1048576.0, primitive / 1048576.0);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public double mapUpdate() {
+        UUID uuid = uuids[ThreadLocalRandom.current().nextInt(players)];
+        double balance = ThreadLocalRandom.current().nextInt(100000) / 100.0;
+        Double previous = lastKnownBalances.put(uuid, balance);
+        lastKnownDbBalances.put(uuid, balance);
+        return previous;
+    }
+
+    @Benchmark
+    @Threads(4)
+    public double trackerUpdate() {
+        UUID uuid = uuids[ThreadLocalRandom.current().nextInt(players)];
+        double balance = ThreadLocalRandom.current().nextInt(100000) / 100.0;
+        double previous = tracker.swapServerBalance(uuid, balance);
+        tracker.setDbBalance(uuid, balance);
+        return previous;
+    }
+
+    @Benchmark
+    @Threads(4)
+    public double mapRead() {
+        return lastKnownBalances.get(uuids[ThreadLocalRandom.current().nextInt(players)]);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public double trackerRead() {
+        return tracker.getServerBalance(uuids[ThreadLocalRandom.current().nextInt(players)]);
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,558 @@
+package com.user404_.balsync;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Several BalSync servers in one JVM against one embedded MariaDB, under load: transactions on
+ * every server, payments to players who are online on another server, players hopping between
+ * servers and join storms. At the end it checks that the money in the database is exactly the
+ * starting money plus every transaction, and how long the servers need after the load stops
+ * until every online player's balance matches the database.
+ * <p>
+ * Each simulated server runs the real DatabaseManager, DeltaWriteQueue (with journal),
+ * BalanceLoadBatcher, BalanceTracker and BalanceSync, the sync rules BalanceManager uses as well.
+ * BalanceManager itself needs a running Bukkit server and Bukkit allows only one per JVM, so
+ * {@link SimServer} stands in for the Bukkit side: the economy, the main thread, the poll
+ * schedule, joins and quits.
+ * <p>
+ * Run with {@code ./gradlew clusterSimulation}, options as {@code -Psim.<name>=<value>}:
+ * servers (4), players (2000), online (0.5, share online at the start), tps (2000 transactions
+ * per second over all servers), seconds (60), hop-rate (0.01 hops per online player and second),
+ * remote-share (0.05 of the transactions), storm-every (20 seconds, 0 = none), storm-size (200),
+ * poll-interval (1000 ms). Exits with 1 if money was lost or created or the servers didn't converge.
+ */
+public final class ClusterSimulation {
+    private static final long START_CENTS = 100_000;
+    private static final long HOP_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(30);
+
+    private final int serverCount = Integer.getInteger("sim.servers", 4);
+    private final int playerCount = Integer.getInteger("sim.players", 2000);
+    private final double onlineShare = doubleOption("sim.online", 0.5);
+    private final int tps = Integer.getInteger("sim.tps", 2000);
+    private final int seconds = Integer.getInteger("sim.seconds", 60);
+    private final double hopRate = doubleOption("sim.hop-rate", 0.01);
+    private final double remoteShare = doubleOption("sim.remote-share", 0.05);
+    private final int stormEvery = Integer.getInteger("sim.storm-every", 20);
+    private final int stormSize = Integer.getInteger("sim.storm-size", 200);
+    private final int pollInterval = Integer.getInteger("sim.poll-interval", 1000);
+
+    private final EmbeddedDatabase database;
+    // Shared by all servers, so the report shows the cluster as a whole
+    private final SyncMetrics metrics = new SyncMetrics();
+    private final List<SimServer> servers = new ArrayList<>();
+    private final UUID[] players;
+    private final Map<UUID, String> names = new HashMap<>();
+    // Server each player is online on or joining, absent while offline
+    private final Map<UUID, SimServer> location = new ConcurrentHashMap<>();
+    // Payments to a player online elsewhere that the player's server hasn't applied yet
+    private final Map<UUID, Queue<RemotePayment>> remotePayments = new ConcurrentHashMap<>();
+    private final Map<UUID, Hop> hops = new ConcurrentHashMap<>();
+
+    private final LongAdder injectedCents = new LongAdder();
+    private final LongAdder transactions = new LongAdder();
+    private final LongAdder payments = new LongAdder();
+    private final LongAdder hopCount = new LongAdder();
+    private final LongAdder staleLoads = new LongAdder();
+    private final LongAdder hopTimeouts = new LongAdder();
+    private final LongAdder stormJoins = new LongAdder();
+    private final LongAdder committedDeltas = new LongAdder();
+    private final LongAdder loadErrors = new LongAdder();
+
+    private ClusterSimulation(EmbeddedDatabase database) {
+        this.database = database;
+        this.players = new UUID[playerCount];
+    }
+
+    public static void main(String[] args) throws Exception {
+        boolean ok;
+        try (EmbeddedDatabase database = new EmbeddedDatabase()) {
+            ok = new ClusterSimulation(database).run();
+        }
+        System.exit(ok ? 0 : 1);
+    }
+
+    private boolean run() throws Exception {
+        for (int i = 0; i < serverCount; i++) {
+            servers.add(new SimServer(i));
+        }
+        seed();
+        for (int i = 0; i < playerCount * onlineShare; i++) {
+            SimServer server = servers.get(i % serverCount);
+            UUID uuid = players[i];
+            location.put(uuid, server);
+            server.main.execute(() -> server.join(uuid, System.nanoTime()));
+        }
+        Thread.sleep(2000);
+        System.out.printf("%d servers, %d players, %d online, %d transactions/s for %d s%n",
+                serverCount, playerCount, location.size(), tps, seconds);
+
+        ScheduledExecutorService driver = thread("Sim-Driver");
+        long start = System.nanoTime();
+        double[] carry = new double[1];
+        driver.scheduleAtFixedRate(() -> drive(carry), 50, 50, TimeUnit.MILLISECONDS);
+        if (stormEvery > 0) {
+            driver.scheduleAtFixedRate(this::storm, stormEvery, stormEvery, TimeUnit.SECONDS);
+        }
+        Thread.sleep(seconds * 1000L);
+        driver.shutdown();
+        driver.awaitTermination(10, TimeUnit.SECONDS);
+        double elapsedSeconds = (System.nanoTime() - start) / 1e9;
+
+        // Let pending main-thread work finish, then write everything like a shutdown would
+        for (SimServer server : servers) {
+            server.main.submit(() -> { }).get();
+        }
+        for (SimServer server : servers) {
+            server.queue.stop(10_000);
+            server.queue.flushNow(10_000);
+            server.queue.close();
+        }
+
+        long expected = playerCount * START_CENTS + injectedCents.sum();
+        long actual = databaseCents();
+        long convergedAfter = awaitConvergence();
+
+        System.out.printf("%n=== Cluster simulation ===%n");
+        System.out.printf("transactions: %d (%.0f/s), of them payments to other servers: %d%n",
+                transactions.sum(), transactions.sum() / elapsedSeconds, payments.sum());
+        System.out.printf("deltas committed: %d (%.0f/s)%n", committedDeltas.sum(),
+                committedDeltas.sum() / elapsedSeconds);
+        System.out.printf("hops: %d, loaded before the previous server's write landed: %d, not converged in 30 s: %d%n",
+                hopCount.sum(), staleLoads.sum(), hopTimeouts.sum());
+        System.out.printf("storm joins: %d, failed loads: %d%n", stormJoins.sum(), loadErrors.sum());
+        System.out.printf("money supply: expected %.2f, database %.2f -> %s%n", expected / 100.0, actual / 100.0,
+                expected == actual ? "conserved" : String.format("OFF BY %.2f", (actual - expected) / 100.0));
+        System.out.println("convergence after the load stopped: " +
+                (convergedAfter >= 0 ? convergedAfter + " ms" : "NOT CONVERGED within 60 s"));
+        System.out.println("latencies in ms (p50 / p99 / max, count):");
+        for (Map.Entry<String, SyncMetrics.Timer> entry : metrics.getTimers().entrySet()) {
+            SyncMetrics.Timer timer = entry.getValue();
+            if (timer.getCount() > 0) {
+                System.out.printf("  %-40s %9.2f %9.2f %9.2f  %d%n", entry.getKey(), timer.getPercentileMillis(0.5),
+                        timer.getPercentileMillis(0.99), timer.getMaxMillis(), timer.getCount());
+            }
+        }
+
+        for (SimServer server : servers) {
+            server.close();
+        }
+        return expected == actual && convergedAfter >= 0;
+    }
+
+    private void seed() throws SQLException {
+        DatabaseManager seeder = servers.get(0).databaseManager;
+        List<DatabaseManager.BalanceEntry> entries = new ArrayList<>();
+        for (int i = 0; i < playerCount; i++) {
+            players[i] = UUID.randomUUID();
+            names.put(players[i], "Player" + i);
+            entries.add(new DatabaseManager.BalanceEntry(players[i], "Player" + i, START_CENTS / 100.0));
+            if (entries.size() == 5000 || i == playerCount - 1) {
+                seeder.saveBalances(entries);
+                entries.clear();
+            }
+        }
+    }
+
+    // One driver tick (50 ms): transactions on every server, hops, expired hops
+    private void drive(double[] carry) {
+        carry[0] += tps / 20.0 / serverCount;
+        int perServer = (int) carry[0];
+        carry[0] -= perServer;
+        for (SimServer server : servers) {
+            server.main.execute(() -> server.transact(perServer));
+        }
+
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        double expectedHops = location.size() * hopRate / 20.0;
+        int hopsNow = (int) expectedHops + (random.nextDouble() < expectedHops % 1 ? 1 : 0);
+        for (int i = 0; i < hopsNow; i++) {
+            UUID uuid = players[random.nextInt(playerCount)];
+            SimServer from = location.get(uuid);
+            if (from == null || hops.containsKey(uuid) || remotePayments.containsKey(uuid) || serverCount < 2) {
+                continue;
+            }
+            SimServer to = servers.get((from.id + 1 + random.nextInt(serverCount - 1)) % serverCount);
+            from.main.execute(() -> from.hop(uuid, to));
+        }
+
+        long now = System.nanoTime();
+        hops.values().removeIf(hop -> {
+            if (now - hop.quitNanos > HOP_TIMEOUT_NANOS) {
+                hopTimeouts.increment();
+                return true;
+            }
+            return false;
+        });
+    }
+
+    // A batch of players leaves, the same number of offline players joins one server at once
+    private void storm() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        SimServer target = servers.get(random.nextInt(serverCount));
+        int joined = 0;
+        int left = 0;
+        for (int attempt = 0; attempt < stormSize * 10 && (joined < stormSize || left < stormSize); attempt++) {
+            UUID uuid = players[random.nextInt(playerCount)];
+            if (hops.containsKey(uuid)) {
+                continue;
+            }
+            SimServer server = location.get(uuid);
+            if (server == null && joined < stormSize && location.putIfAbsent(uuid, target) == null) {
+                long joinedAt = System.nanoTime();
+                target.main.execute(() -> target.join(uuid, joinedAt));
+                joined++;
+            } else if (server != null && left < stormSize) {
+                server.main.execute(() -> server.quit(uuid));
+                left++;
+            }
+        }
+        stormJoins.add(joined);
+    }
+
+    private long databaseCents() throws SQLException {
+        try (Connection conn = servers.get(0).databaseManager.getConnection();
+             Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT SUM(ROUND(balance * 100)) FROM player_balances")) {
+            rs.next();
+            return rs.getLong(1);
+        }
+    }
+
+    // Milliseconds until every online balance matches the database (the polls keep running), -1 on timeout
+    private long awaitConvergence() throws Exception {
+        long start = System.nanoTime();
+        while (System.nanoTime() - start < TimeUnit.SECONDS.toNanos(60)) {
+            int mismatches = 0;
+            for (SimServer server : servers) {
+                mismatches += server.main.submit(server::countMismatches).get();
+            }
+            if (mismatches == 0) {
+                return (System.nanoTime() - start) / 1_000_000;
+            }
+            Thread.sleep(100);
+        }
+        return -1;
+    }
+
+    private static long cents(double balance) {
+        return Math.round(balance * 100);
+    }
+
+    private static double doubleOption(String name, double fallback) {
+        String value = System.getProperty(name);
+        return value != null ? Double.parseDouble(value) : fallback;
+    }
+
+    private static ScheduledExecutorService thread(String name) {
+        return Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /** One BalSync server. Everything touching the economy runs on {@link #main}, like on Bukkit. */
+    private final class SimServer {
+        final int id;
+        final DatabaseManager databaseManager;
+        final DeltaWriteQueue queue;
+        final BalanceLoadBatcher loadBatcher;
+        final BalanceTracker tracker = new BalanceTracker();
+        final BalanceSync sync;
+        final ScheduledExecutorService main;
+        final ScheduledExecutorService poller;
+        // The server's own economy, main thread only
+        final Map<UUID, Double> economy = new HashMap<>();
+        final BalanceSync.Wallet wallet = new BalanceSync.Wallet() {
+            @Override
+            public double getBalance(UUID uuid) {
+                return economy.getOrDefault(uuid, 0.0);
+            }
+
+            @Override
+            public void add(UUID uuid, double amount) {
+                economy.put(uuid, BalanceTracker.roundToCents(getBalance(uuid) + amount));
+            }
+        };
+        final List<UUID> online = new ArrayList<>();
+        final Map<UUID, Integer> onlineIndex = new HashMap<>();
+        // Readable from the poll and writer threads
+        final Set<UUID> onlineSet = ConcurrentHashMap.newKeySet();
+        Timestamp pollWatermark;
+
+        SimServer(int id) throws Exception {
+            this.id = id;
+            BalSyncPlugin plugin = database.newPlugin("sim-" + id, metrics);
+            databaseManager = new DatabaseManager(plugin);
+            if (!databaseManager.connect()) {
+                throw new IllegalStateException("Could not connect to the embedded database");
+            }
+            databaseManager.setupTables();
+            queue = new DeltaWriteQueue(plugin, databaseManager, this::onDeltaWritten, null);
+            sync = new BalanceSync(tracker, queue, this::correct);
+            loadBatcher = new BalanceLoadBatcher(plugin, databaseManager);
+            main = thread("Sim-" + id + "-Main");
+            poller = thread("Sim-" + id + "-Poll");
+            poller.scheduleWithFixedDelay(this::poll, pollInterval, pollInterval, TimeUnit.MILLISECONDS);
+        }
+
+        void transact(int count) {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            for (int i = 0; i < count && !online.isEmpty(); i++) {
+                if (random.nextDouble() < remoteShare && pay(random)) {
+                    continue;
+                }
+                UUID uuid = online.get(random.nextInt(online.size()));
+                if (hops.containsKey(uuid)) {
+                    // Frozen until the hop has converged
+                    continue;
+                }
+                long amount = random.nextLong(1, 5000) * (random.nextBoolean() ? 1 : -1);
+                if (cents(economy.get(uuid)) + amount < 0) {
+                    amount = -amount;
+                }
+                wallet.add(uuid, amount / 100.0);
+                // SyncingEconomy -> BalanceManager.recordTransaction
+                sync.recordTransaction(uuid, names.get(uuid), () -> economy.get(uuid), amount / 100.0);
+                injectedCents.add(amount);
+                transactions.increment();
+            }
+        }
+
+        // A payment to a player online on another server, made in this server's economy like
+        // SyncingEconomy does for an offline player
+        boolean pay(ThreadLocalRandom random) {
+            UUID uuid = players[random.nextInt(playerCount)];
+            SimServer home = location.get(uuid);
+            if (home == null || home == this || !home.onlineSet.contains(uuid) || hops.containsKey(uuid)) {
+                return false;
+            }
+            long amount = random.nextLong(1, 5000);
+            remotePayments.computeIfAbsent(uuid, k -> new ConcurrentLinkedQueue<>())
+                    .add(new RemotePayment(this, System.nanoTime(), System.currentTimeMillis()));
+            wallet.add(uuid, amount / 100.0);
+            sync.recordTransaction(uuid, names.get(uuid), () -> economy.get(uuid), amount / 100.0);
+            injectedCents.add(amount);
+            transactions.increment();
+            payments.increment();
+            return true;
+        }
+
+        // BalanceManager.syncOnJoin with a prefetch on the login thread
+        void join(UUID uuid, long joinedAtNanos) {
+            if (queue.hasPending(uuid)) {
+                // Our own write isn't in the database yet, load 40 ticks later
+                queue.requestFlush();
+                main.schedule(() -> join(uuid, joinedAtNanos), 2, TimeUnit.SECONDS);
+                return;
+            }
+            long readStartedAt = System.currentTimeMillis();
+            loadBatcher.load(uuid).whenComplete((balance, error) -> {
+                if (error != null) {
+                    loadErrors.increment();
+                    location.remove(uuid, this);
+                    return;
+                }
+                main.execute(() -> applyLoadedBalance(uuid, balance, readStartedAt, joinedAtNanos));
+            });
+        }
+
+        // BalanceManager.applyOnJoin: the database balance overwrites the local one
+        void applyLoadedBalance(UUID uuid, double balance, long readStartedAt, long joinedAtNanos) {
+            if (!sync.applyLoadedBalance(wallet, uuid, balance, readStartedAt, false)) {
+                queue.requestFlush();
+                main.schedule(() -> join(uuid, joinedAtNanos), 2, TimeUnit.SECONDS);
+                return;
+            }
+            if (onlineIndex.putIfAbsent(uuid, online.size()) == null) {
+                online.add(uuid);
+            }
+            onlineSet.add(uuid);
+            location.put(uuid, this);
+            metrics.timer("sim_join").recordSince(joinedAtNanos);
+
+            Hop hop = hops.get(uuid);
+            if (hop != null && hop.target == this && cents(balance) != hop.expectedCents) {
+                staleLoads.increment();
+            }
+            checkHop(uuid);
+        }
+
+        // PlayerEventListener.onPlayerQuit -> BalanceManager.savePlayerBalance
+        boolean quit(UUID uuid) {
+            Integer index = onlineIndex.remove(uuid);
+            if (index == null) {
+                return false;
+            }
+            UUID last = online.remove(online.size() - 1);
+            if (!last.equals(uuid)) {
+                online.set(index, last);
+                onlineIndex.put(last, index);
+            }
+            onlineSet.remove(uuid);
+            location.remove(uuid, this);
+            // Payments this server can't apply anymore, they show up at the next join
+            remotePayments.remove(uuid);
+            sync.queueBalanceChange(uuid, names.get(uuid), () -> economy.get(uuid));
+            return true;
+        }
+
+        void hop(UUID uuid, SimServer target) {
+            double balance = economy.getOrDefault(uuid, Double.NaN);
+            if (!quit(uuid)) {
+                return;
+            }
+            hops.put(uuid, new Hop(target, cents(balance), System.nanoTime()));
+            location.put(uuid, target);
+            hopCount.increment();
+            // Reconnecting through the proxy takes a moment
+            target.main.schedule(() -> target.join(uuid, System.nanoTime()), 100, TimeUnit.MILLISECONDS);
+        }
+
+        // BalanceManager.pollDatabaseForChanges
+        void poll() {
+            if (onlineSet.isEmpty()) {
+                pollWatermark = null;
+                return;
+            }
+            try {
+                long readStartedAt = System.currentTimeMillis();
+                DatabaseManager.ChangeSet changeSet = databaseManager.getChangedBalancesSince(pollWatermark);
+                pollWatermark = changeSet.watermark();
+                for (DatabaseManager.BalanceChange change : changeSet.changes()) {
+                    if (onlineSet.contains(change.uuid())) {
+                        sync.handleDbBalance(change.uuid(), change.balance(), readStartedAt, change.version());
+                    }
+                }
+                // BalanceManager.loadDeferredPlayers
+                List<UUID> due = new ArrayList<>();
+                for (UUID uuid : sync.getDeferred()) {
+                    if (sync.getDeferred().remove(uuid) && onlineSet.contains(uuid)) {
+                        due.add(uuid);
+                    }
+                }
+                if (!due.isEmpty()) {
+                    long deferredReadAt = System.currentTimeMillis();
+                    Map<UUID, Double> balances = databaseManager.getBalances(due);
+                    for (UUID uuid : due) {
+                        sync.handleDbBalance(uuid, balances.get(uuid), deferredReadAt);
+                    }
+                }
+            } catch (SQLException | RuntimeException e) {
+                System.err.println("Poll of server " + id + " failed: " + e);
+            }
+        }
+
+        // BalanceManager.applyDbChangeToPlayer, from the poll or the writer thread
+        void correct(UUID uuid, double amount, double newDbBalance) {
+            if (onlineSet.contains(uuid)) {
+                long observedAt = System.nanoTime();
+                main.execute(() -> applyCorrection(uuid, amount, observedAt));
+            }
+        }
+
+        // BalanceManager.onDeltaWritten, on the writer thread
+        void onDeltaWritten(UUID uuid, double delta, double newDbBalance, long version, long writeStartedAt) {
+            committedDeltas.increment();
+            Queue<RemotePayment> pending = remotePayments.get(uuid);
+            if (pending != null) {
+                long now = System.nanoTime();
+                for (RemotePayment payment : pending) {
+                    if (payment.from == this && payment.committedNanos == 0 && payment.sentMillis <= writeStartedAt) {
+                        payment.committedNanos = now;
+                    }
+                }
+            }
+            sync.onDeltaWritten(uuid, delta, newDbBalance, version);
+        }
+
+        // BalanceManager.applyCorrection, main thread
+        void applyCorrection(UUID uuid, double amount, long observedAtNanos) {
+            if (!onlineSet.contains(uuid)) {
+                return;
+            }
+            sync.applyCorrection(wallet, uuid, amount);
+
+            Queue<RemotePayment> pending = remotePayments.get(uuid);
+            if (pending != null) {
+                long now = System.nanoTime();
+                pending.removeIf(payment -> {
+                    if (payment.committedNanos != 0 && payment.committedNanos <= observedAtNanos) {
+                        metrics.timer("sim_propagation").record(now - payment.sentNanos);
+                        return true;
+                    }
+                    return false;
+                });
+                if (pending.isEmpty()) {
+                    remotePayments.remove(uuid, pending);
+                }
+            }
+            checkHop(uuid);
+        }
+
+        void checkHop(UUID uuid) {
+            Hop hop = hops.get(uuid);
+            if (hop != null && hop.target == this && cents(economy.get(uuid)) == hop.expectedCents) {
+                metrics.timer("sim_hop_converged").recordSince(hop.quitNanos);
+                hops.remove(uuid, hop);
+            }
+        }
+
+        int countMismatches() throws SQLException {
+            if (online.isEmpty()) {
+                return 0;
+            }
+            Map<UUID, Double> balances = databaseManager.getBalances(new ArrayList<>(online));
+            int mismatches = 0;
+            for (UUID uuid : online) {
+                Double balance = balances.get(uuid);
+                if (balance == null || cents(balance) != cents(economy.get(uuid))) {
+                    mismatches++;
+                }
+            }
+            return mismatches;
+        }
+
+        void close() {
+            poller.shutdownNow();
+            main.shutdownNow();
+            loadBatcher.shutdown();
+            databaseManager.disconnect();
+        }
+    }
+
+    private static final class RemotePayment {
+        final SimServer from;
+        final long sentNanos;
+        final long sentMillis;
+        // Set by the sender's writer once the delta is in the database
+        volatile long committedNanos;
+
+        RemotePayment(SimServer from, long sentNanos, long sentMillis) {
+            this.from = from;
+            this.sentNanos = sentNanos;
+            this.sentMillis = sentMillis;
+        }
+    }
+
+    private record Hop(SimServer target, long expectedCents, long quitNanos) {
+    }
+}
@@ -0,0 +1,111 @@
+package com.user404_.balsync;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The DatabaseManager calls on the sync paths against an embedded MariaDB holding 1k, 10k or
+ * 100k players: single load, save and delta upsert of a random player, the batched load of the
+ * online players (the IN-list query of join storms and deferred loads) and the poll for rows
+ * changed since the last watermark, with 1% of the table changed.
+ * <p>
+ * The numbers include the loopback round trip, so compare them between builds on the same
+ * machine. {@code ./gradlew jmh} writes them to build/results/jmh/results.json.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DatabaseBenchmark {
+    private static final int ONLINE_PLAYERS = 200;
+
+    @Param({"1000", "10000", "100000"})
+    public int rows;
+
+    private EmbeddedDatabase database;
+    private DatabaseManager databaseManager;
+    private UUID[] uuids;
+    private List<UUID> online;
+    private Timestamp pollWatermark;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        database = new EmbeddedDatabase();
+        databaseManager = database.connect();
+
+        uuids = new UUID[rows];
+        List<DatabaseManager.BalanceEntry> entries = new ArrayList<>();
+        for (int i = 0; i < rows; i++) {
+            uuids[i] = UUID.randomUUID();
+            entries.add(new DatabaseManager.BalanceEntry(uuids[i], "Player" + i, 1000));
+            if (entries.size() == 5000 || i == rows - 1) {
+                databaseManager.saveBalances(entries);
+                entries.clear();
+            }
+        }
+
+        online = new ArrayList<>();
+        for (int i = 0; i < ONLINE_PLAYERS; i++) {
+            online.add(uuids[ThreadLocalRandom.current().nextInt(rows)]);
+        }
+
+        // Everything old except 1% of the players, so the poll finds a realistic amount of changes
+        try (Connection conn = databaseManager.getConnection(); Statement stmt = conn.createStatement()) {
+            stmt.executeUpdate("UPDATE player_balances SET last_updated = NOW() - INTERVAL 1 HOUR");
+        }
+        pollWatermark = new Timestamp(System.currentTimeMillis() - 60_000);
+        for (int i = 0; i < rows; i += 100) {
+            entries.add(new DatabaseManager.BalanceEntry(uuids[i], "Player" + i, 2000));
+        }
+        databaseManager.saveBalances(entries);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        databaseManager.disconnect();
+        database.close();
+    }
+
+    private UUID randomPlayer() {
+        return uuids[ThreadLocalRandom.current().nextInt(rows)];
+    }
+
+    @Benchmark
+    public double getBalance() throws SQLException {
+        return databaseManager.getBalance(randomPlayer());
+    }
+
+    @Benchmark
+    public void saveBalance() throws SQLException {
+        databaseManager.saveBalance(randomPlayer(), "Player", ThreadLocalRandom.current().nextInt(100_000) / 100.0);
+    }
+
+    @Benchmark
+    public double addBalanceDelta() throws SQLException {
+        // Alternating sign keeps the balances from drifting over a long run
+        double delta = ThreadLocalRandom.current().nextBoolean() ? 1.5 : -1.5;
+        return databaseManager.addBalanceDelta(randomPlayer(), "Player", delta);
+    }
+
+    @Benchmark
+    public Map<UUID, Double> getBalancesOfOnlinePlayers() throws SQLException {
+        return databaseManager.getBalances(online);
+    }
+
+    @Benchmark
+    public int pollChanges() throws SQLException {
+        return databaseManager.getChangedBalancesSince(pollWatermark).changes().size();
+    }
+}
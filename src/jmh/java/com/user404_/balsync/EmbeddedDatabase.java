@@ -0,0 +1,85 @@
+package com.user404_.balsync;
+
+import ch.vorburger.mariadb4j.DB;
+import ch.vorburger.mariadb4j.DBConfigurationBuilder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.logging.Logger;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Throwaway MariaDB for the benchmarks, plus a mocked plugin whose ConfigManager points at it.
+ * The config mock returns the plugin defaults; benchmarks override single getters with
+ * {@code when(config.getX()).thenReturn(...)} before creating the managers.
+ * {@link #newPlugin} mocks further plugins against the same database, one per simulated server.
+ */
+final class EmbeddedDatabase implements AutoCloseable {
+    private final DB db;
+    private final int port;
+    final BalSyncPlugin plugin;
+    final ConfigManager config;
+    final SyncMetrics metrics;
+
+    EmbeddedDatabase() throws Exception {
+        DBConfigurationBuilder builder = DBConfigurationBuilder.newBuilder();
+        builder.setPort(0); // any free port
+        db = DB.newEmbeddedDB(builder.build());
+        db.start();
+        db.createDB("balsync");
+        port = builder.getPort();
+
+        metrics = new SyncMetrics();
+        plugin = newPlugin("bench", metrics);
+        config = plugin.getConfigManager();
+    }
+
+    // A plugin with its own data folder (journal, server id) and config mock
+    BalSyncPlugin newPlugin(String serverId, SyncMetrics metrics) throws IOException {
+        ConfigManager config = mock(ConfigManager.class);
+        when(config.getDatabaseHost()).thenReturn("localhost");
+        when(config.getDatabasePort()).thenReturn(port);
+        when(config.getDatabaseName()).thenReturn("balsync");
+        when(config.getDatabaseUsername()).thenReturn("root");
+        when(config.getDatabasePassword()).thenReturn("");
+        when(config.getMaxPoolSize()).thenReturn(10);
+        when(config.getMinIdle()).thenReturn(2);
+        when(config.getConnectionTimeout()).thenReturn(30000);
+        when(config.getIdleTimeout()).thenReturn(600000);
+        when(config.getTableName()).thenReturn("player_balances");
+        when(config.getSaveBatchSize()).thenReturn(500);
+        when(config.getDbPollOverlap()).thenReturn(5);
+        when(config.getLoadBatchWindow()).thenReturn(5);
+        when(config.getCircuitBreakerFailureThreshold()).thenReturn(5);
+        when(config.getCircuitBreakerSlowCallMillis()).thenReturn(2000);
+        when(config.getCircuitBreakerOpenDuration()).thenReturn(30);
+        when(config.getServerId()).thenReturn(serverId);
+        when(config.getWriteBehindFlushInterval()).thenReturn(1000L);
+        when(config.getWriteBehindMaxPending()).thenReturn(500);
+        when(config.getJournalSyncInterval()).thenReturn(50);
+        when(config.getJournalSegmentSize()).thenReturn(4);
+
+        BalSyncPlugin plugin = mock(BalSyncPlugin.class);
+        when(plugin.getConfigManager()).thenReturn(config);
+        when(plugin.getPluginLogger()).thenReturn(Logger.getLogger("BalSync"));
+        when(plugin.getSyncMetrics()).thenReturn(metrics);
+        when(plugin.getDataFolder()).thenReturn(Files.createTempDirectory("balsync-" + serverId).toFile());
+        return plugin;
+    }
+
+    DatabaseManager connect() {
+        DatabaseManager databaseManager = new DatabaseManager(plugin);
+        if (!databaseManager.connect()) {
+            throw new IllegalStateException("Could not connect to the embedded database");
+        }
+        databaseManager.setupTables();
+        return databaseManager;
+    }
+
+    @Override
+    public void close() throws Exception {
+        db.stop();
+    }
+}
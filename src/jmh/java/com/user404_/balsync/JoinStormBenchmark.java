@@ -0,0 +1,99 @@
+package com.user404_.balsync;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.mockito.Mockito.when;
+
+/**
+ * 500 players logging in at once, each loading its balance from its own login thread, against an
+ * embedded MariaDB with the default pool of 10 connections. {@code windowMs = 0} is one query per
+ * player (the old behaviour), anything else goes through BalanceLoadBatcher. The score is the
+ * time until every player has a balance; the time spent waiting for a pooled connection is
+ * printed after each iteration.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 20)
+@Fork(1)
+public class JoinStormBenchmark {
+    private static final int PLAYERS = 500;
+
+    @Param({"0", "5"})
+    public int windowMs;
+
+    private EmbeddedDatabase database;
+    private DatabaseManager databaseManager;
+    private BalanceLoadBatcher batcher;
+    private ExecutorService loginThreads;
+    private UUID[] uuids;
+
+    private SyncMetrics.Timer poolWait;
+    private long checkoutsBefore;
+    private double waitMillisBefore;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        database = new EmbeddedDatabase();
+        when(database.config.getLoadBatchWindow()).thenReturn(windowMs);
+        databaseManager = database.connect();
+        poolWait = database.metrics.timer("balsync_pool_acquire");
+        batcher = new BalanceLoadBatcher(database.plugin, databaseManager);
+
+        uuids = new UUID[PLAYERS];
+        List<DatabaseManager.BalanceEntry> entries = new ArrayList<>();
+        for (int i = 0; i < PLAYERS; i++) {
+            uuids[i] = UUID.randomUUID();
+            entries.add(new DatabaseManager.BalanceEntry(uuids[i], "Player" + i, i));
+        }
+        databaseManager.saveBalances(entries);
+
+        // Paper handles logins on a pool that grows with demand
+        loginThreads = Executors.newCachedThreadPool();
+    }
+
+    @Setup(Level.Iteration)
+    public void resetStats() {
+        checkoutsBefore = poolWait.getCount();
+        waitMillisBefore = poolWait.getMeanMillis() * checkoutsBefore;
+    }
+
+    @Benchmark
+    public double storm() throws Exception {
+        List<Future<Double>> logins = new ArrayList<>(PLAYERS);
+        for (UUID uuid : uuids) {
+            logins.add(loginThreads.submit(() -> batcher.load(uuid).join()));
+        }
+        double sum = 0;
+        for (Future<Double> login : logins) {
+            sum += login.get();
+        }
+        return sum;
+    }
+
+    @TearDown(Level.Iteration)
+    public void printStats() {
+        long checkouts = poolWait.getCount() - checkoutsBefore;
+        double waitMillis = poolWait.getMeanMillis() * poolWait.getCount() - waitMillisBefore;
+        System.out.printf("%nwindow=%d ms: %d connection checkouts, pool wait avg %.2f ms (p99 %.2f ms, max %.2f ms over the trial)%n",
+                windowMs, checkouts, waitMillis / Math.max(1, checkouts), poolWait.getPercentileMillis(0.99),
+                poolWait.getMaxMillis());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        loginThreads.shutdownNow();
+        batcher.shutdown();
+        databaseManager.disconnect();
+        database.close();
+    }
+}
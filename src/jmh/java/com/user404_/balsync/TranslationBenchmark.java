@@ -0,0 +1,72 @@
+package com.user404_.balsync;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Message formatting done for every synced player: the plain join message, a message with a
+ * MessageFormat argument and the external change notification built in applyCorrection, which
+ * runs on the main thread inside the apply budget. The English messages are loaded from the
+ * plugin jar's resources like on a server.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TranslationBenchmark {
+    private TranslationManager translations;
+    private File dataFolder;
+    private double oldBalance = 1234.5;
+    private double newBalance = 1300.25;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        dataFolder = Files.createTempDirectory("balsync-bench").toFile();
+        ConfigManager config = mock(ConfigManager.class);
+        when(config.getLocale()).thenReturn("en");
+        BalSyncPlugin plugin = mock(BalSyncPlugin.class);
+        when(plugin.getConfigManager()).thenReturn(config);
+        when(plugin.getPluginLogger()).thenReturn(Logger.getLogger("BalSync"));
+        when(plugin.getDataFolder()).thenReturn(dataFolder);
+        when(plugin.getResource("messages_en.yml"))
+                .thenAnswer(invocation -> TranslationBenchmark.class.getResourceAsStream("/messages_en.yml"));
+
+        translations = new TranslationManager(plugin);
+        translations.loadMessages();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        dataFolder.delete();
+    }
+
+    @Benchmark
+    public String balanceLoaded() {
+        return translations.formatMessage("balance-loaded");
+    }
+
+    @Benchmark
+    public String balanceResetWithArgument() {
+        return translations.formatMessage("balance-reset", newBalance);
+    }
+
+    // Same steps as BalanceManager.applyCorrection
+    @Benchmark
+    public String externalChange() {
+        String message = translations.getMessage("balance-external-change");
+        String formatted = message
+                .replace("{old}", String.format("%.2f", oldBalance))
+                .replace("{new}", String.format("%.2f", newBalance))
+                .replace("&", "§");
+        return translations.formatMessage("prefix") + formatted;
+    }
+}
@@ -0,0 +1,56 @@
+package com.user404_.balsync;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Delay until the next database poll. It starts at the configured interval, grows by half after
+ * every poll that found nothing up to {@code settings.db-poll-max-interval}, and drops back as
+ * soon as a poll finds changes or a player joins. Every delay is spread by
+ * {@code settings.db-poll-jitter} in both directions, so servers that were started together
+ * don't keep querying in the same second.
+ */
+public class AdaptivePollInterval {
+    private final long minMillis;
+    private final long maxMillis;
+    private final double jitter;
+    private volatile long currentMillis;
+
+    public AdaptivePollInterval(long minMillis, long maxMillis, double jitter) {
+        this.minMillis = minMillis;
+        this.maxMillis = Math.max(minMillis, maxMillis);
+        this.jitter = Math.max(0, Math.min(0.5, jitter));
+        this.currentMillis = minMillis;
+    }
+
+    public void onPoll(boolean foundChanges) {
+        long current = currentMillis;
+        currentMillis = foundChanges ? minMillis : Math.min(maxMillis, current + current / 2);
+    }
+
+    // Players are joining or trading, changes from other servers are likely as well
+    public void onActivity() {
+        currentMillis = minMillis;
+    }
+
+    public long nextDelayMillis() {
+        double spread = 1 + jitter * (2 * ThreadLocalRandom.current().nextDouble() - 1);
+        return Math.max(50, Math.round(currentMillis * spread));
+    }
+
+    // Anywhere within the first interval, so a network started at once doesn't poll in lockstep
+    public long firstDelayMillis() {
+        return Math.max(50, Math.round(minMillis * ThreadLocalRandom.current().nextDouble()));
+    }
+
+    public long getCurrentMillis() {
+        return currentMillis;
+    }
+
+    public long getMinMillis() {
+        return minMillis;
+    }
+
+    public long getMaxMillis() {
+        return maxMillis;
+    }
+}
@@ -5,6 +5,8 @@ import org.bukkit.command.CommandExecutor;
 import org.bukkit.command.CommandSender;
 import org.bukkit.entity.Player;
 
+import java.util.Map;
+
 public class BalSyncCommand implements CommandExecutor {
     private final BalSyncPlugin plugin;
     private final BalanceManager balanceManager;
@@ -75,8 +77,63 @@ public class BalSyncCommand implements CommandExecutor {
     private void sendStatusInfo(CommandSender sender) {
         sender.sendMessage("§6=== BalSync Status ===");
         sender.sendMessage("§7Auto-save interval: §e" + plugin.getConfigManager().getAutoSaveInterval() + "s");
-        sender.sendMessage("§7Database polling: §e" + plugin.getConfigManager().getDbPollInterval() + "s");
+        ChangeNotifier notifier = balanceManager.getChangeNotifier();
+        AdaptivePollInterval pollInterval = balanceManager.getPollInterval();
+        if (pollInterval != null) {
+            sender.sendMessage("§7Database polling: §e" + String.format("%.1f", pollInterval.getCurrentMillis() / 1000.0) +
+                    "s §7(range: §e" + pollInterval.getMinMillis() / 1000 + "-" + pollInterval.getMaxMillis() / 1000 +
+                    "s§7, ±" + Math.round(plugin.getConfigManager().getDbPollJitter() * 100) + "% jitter)");
+        } else {
+            sender.sendMessage("§7Database polling: §eoff");
+        }
+        SharedBalanceCache sharedCache = balanceManager.getSharedCache();
+        if (sharedCache != null) {
+            sender.sendMessage("§7Shared cache: §e" + sharedCache.getHits() + "§7 hits, §e" + sharedCache.getMisses() +
+                    "§7 misses (§e" + sharedCache.getSlots() + "§7 slots)");
+        }
+        sender.sendMessage("§7Change notifications: §e" + (notifier != null ? notifier.getStatus() : "off"));
         sender.sendMessage("§7Reset on join: §e" + plugin.getConfigManager().isResetOnJoin());
         sender.sendMessage("§7Offline monitoring: §e" + plugin.getConfigManager().monitorOfflineChanges());
+        sender.sendMessage("§7Economy wrapper: §e" + plugin.isEconomyWrapped());
+        OfflineBalanceScanner scanner = balanceManager.getOfflineScanner();
+        if (scanner != null) {
+            sender.sendMessage("§7Offline scan: §e" + scanner.getCyclePosition() + "§7/§e" + scanner.getCycleSize() +
+                    " §7(every §e" + plugin.getConfigManager().getOfflineScanPeriod() + "s§7)");
+        }
+        CircuitBreaker breaker = plugin.getDatabaseManager().getCircuitBreaker();
+        sender.sendMessage("§7Database: §e" + breaker.getState() + " §7(trips: §e" + breaker.getTrips() +
+                "§7, rejected calls: §e" + breaker.getRejected() + "§7, deferred joins: §e" +
+                balanceManager.getDeferredLoadCount() + "§7)");
+        ReadReplica replica = plugin.getDatabaseManager().getReadReplica();
+        sender.sendMessage("§7Read replica: §e" + (replica != null ? replica.getStatus() : "off"));
+        sender.sendMessage("§7Pending writes: §e" + balanceManager.getPendingWriteCount() +
+                " §7(journal files: §e" + balanceManager.getJournalSegmentCount() + "§7)");
+        if (plugin.getDatabaseManager().isLedgerEnabled()) {
+            sender.sendMessage("§7Ledger: §eenabled §7(last compaction: §e" + balanceManager.getLastCompactedRows() +
+                    "§7 rows)");
+        }
+        BalanceApplier applier = balanceManager.getBalanceApplier();
+        sender.sendMessage("§7Apply backlog: §e" + applier.getBacklog() + " §7(last run: §e" +
+                applier.getLastRunApplied() + "§7 in §e" + applier.getLastRunMicros() + " µs§7)");
+        JoinPrefetcher prefetcher = balanceManager.getJoinPrefetcher();
+        sender.sendMessage("§7Join sync: §e" + prefetcher.getAverageLatencyMicros() / 1000 + " ms avg §7(last: §e" +
+                prefetcher.getLastLatencyMicros() / 1000 + " ms§7, prefetched: §e" + prefetcher.getHits() +
+                "§7/§e" + (prefetcher.getHits() + prefetcher.getMisses()) + "§7)");
+        BalanceTracker tracker = balanceManager.getTracker();
+        sender.sendMessage("§7Tracked players: §e" + tracker.size() + " §7(hits: §e" + tracker.getHits() +
+                "§7, misses: §e" + tracker.getMisses() + "§7, evicted: §e" +
+                (tracker.getExpiredEvictions() + tracker.getSizeEvictions()) + "§7)");
+
+        // p50 / p99 / max of everything that was timed since startup
+        for (Map.Entry<String, SyncMetrics.Timer> entry : plugin.getSyncMetrics().getTimers().entrySet()) {
+            SyncMetrics.Timer timer = entry.getValue();
+            if (timer.getCount() == 0) {
+                continue;
+            }
+            sender.sendMessage("§7" + entry.getKey().replace("balsync_", "") + ": §e" +
+                    String.format("%.2f", timer.getPercentileMillis(0.5)) + "§7 / §e" +
+                    String.format("%.2f", timer.getPercentileMillis(0.99)) + "§7 / §e" +
+                    String.format("%.2f", timer.getMaxMillis()) + " ms §7(p50/p99/max, §e" + timer.getCount() + "§7)");
+        }
     }
 }
\ No newline at end of file
@@ -3,22 +3,29 @@ package com.user404_.balsync;
 
 import org.bukkit.plugin.java.JavaPlugin;
 import org.bukkit.plugin.RegisteredServiceProvider;
+import org.bukkit.plugin.ServicePriority;
 import net.milkbowl.vault.economy.Economy;
+import java.io.File;
+import java.io.IOException;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 public class BalSyncPlugin extends JavaPlugin {
     private static BalSyncPlugin instance;
     private Economy economy;
+    private SyncingEconomy syncingEconomy;
     private DatabaseManager databaseManager;
     private BalanceManager balanceManager;
     private TranslationManager translationManager;
     private ConfigManager configManager;
+    private SyncMetrics syncMetrics;
     private Logger logger;
 
     @Override
     public void onEnable() {
         instance = this;
         logger = getLogger();
+        syncMetrics = new SyncMetrics();
 
         // Load configuration
         configManager = new ConfigManager(this);
@@ -49,20 +56,40 @@ public class BalSyncPlugin extends JavaPlugin {
         // Initialize balance manager
         balanceManager = new BalanceManager(this, economy, databaseManager);
 
+        // Put the recording economy in front of the real one, BalSync itself keeps using the real one
+        if (configManager.isEconomyWrapperEnabled()) {
+            syncingEconomy = new SyncingEconomy(economy, balanceManager::recordTransaction);
+            getServer().getServicesManager().register(Economy.class, syncingEconomy, this, ServicePriority.Highest);
+            logger.info("Registered the syncing economy wrapper for " + economy.getName() + ".");
+        }
+
         // Register event listeners
         getServer().getPluginManager().registerEvents(new PlayerEventListener(this, balanceManager), this);
 
         // Register commands
         getCommand("balsync").setExecutor(new BalSyncCommand(this, balanceManager));
 
-        // Start auto-save task if enabled
+        // Start auto-save task if enabled (only balances that changed since the last cycle)
         int interval = configManager.getAutoSaveInterval();
         if (interval > 0) {
             getServer().getScheduler().runTaskTimerAsynchronously(this,
-                    () -> balanceManager.saveAllBalances(),
+                    () -> balanceManager.saveDirtyBalances(),
                     interval * 20L, interval * 20L);
         }
 
+        // Metrics for Prometheus' textfile collector or anything else that reads the file
+        int metricsInterval = configManager.getMetricsInterval();
+        if (metricsInterval > 0) {
+            File metricsFile = new File(getDataFolder(), "metrics.prom");
+            getServer().getScheduler().runTaskTimerAsynchronously(this, () -> {
+                try {
+                    syncMetrics.writeTo(metricsFile);
+                } catch (IOException e) {
+                    logger.log(Level.WARNING, "Failed to write " + metricsFile, e);
+                }
+            }, metricsInterval * 20L, metricsInterval * 20L);
+        }
+
         logger.info("BalSync v" + getDescription().getVersion() + " enabled successfully!");
         logger.info("The Official Version of BalSync is by User404_ (or deutschich on GitHub)");
         logger.info("Other Copys may not be safe!");
@@ -70,10 +97,15 @@ public class BalSyncPlugin extends JavaPlugin {
 
     @Override
     public void onDisable() {
-        // Save all balances on shutdown
+        // Plugins looking up the economy from now on get the real one
+        if (syncingEconomy != null) {
+            getServer().getServicesManager().unregister(Economy.class, syncingEconomy);
+            syncingEconomy = null;
+        }
+
+        // Stops the tasks and saves all balances on this thread, before the pool is closed
         if (balanceManager != null) {
-            balanceManager.saveAllBalances();
-            balanceManager.shutdown(); // Cleanup polling tasks
+            balanceManager.shutdown();
         }
 
         // Close database connection
@@ -96,6 +128,10 @@ public class BalSyncPlugin extends JavaPlugin {
         }
 
         economy = rsp.getProvider();
+        if (economy instanceof SyncingEconomy wrapper) {
+            // Left over from an earlier enable, we need the real economy
+            economy = wrapper.getDelegate();
+        }
         return economy != null;
     }
 
@@ -107,6 +143,14 @@ public class BalSyncPlugin extends JavaPlugin {
         return economy;
     }
 
+    public boolean isEconomyWrapped() {
+        return syncingEconomy != null;
+    }
+
+    public SyncMetrics getSyncMetrics() {
+        return syncMetrics;
+    }
+
     public DatabaseManager getDatabaseManager() {
         return databaseManager;
     }
@@ -0,0 +1,105 @@
+package com.user404_.balsync;
+
+import org.bukkit.Bukkit;
+import org.bukkit.scheduler.BukkitTask;
+
+import java.util.Map;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Consumer;
+
+/**
+ * Applies database changes to online players on the main thread. Corrections are amounts, queued
+ * from any thread (one per player, a newer amount is added to a queued one) and a repeating task
+ * works through them each tick until {@code settings.apply-budget-us} is used up. Whatever is
+ * left carries over to the next tick, so a payout to every player doesn't land in a single tick.
+ */
+public class BalanceApplier implements Runnable {
+    private final Consumer<Correction> handler;
+    private final SyncMetrics.Timer applyDelay;
+    private final SyncMetrics.Timer runTime;
+    private final long budgetNanos;
+    private final Map<UUID, Correction> pending = new ConcurrentHashMap<>();
+    private final Queue<UUID> order = new ConcurrentLinkedQueue<>();
+    private BukkitTask task;
+
+    // Stats of the last tick that had something to apply
+    private volatile long lastRunMicros;
+    private volatile int lastRunApplied;
+
+    public BalanceApplier(BalSyncPlugin plugin, Consumer<Correction> handler) {
+        this.handler = handler;
+        this.budgetNanos = plugin.getConfigManager().getApplyBudgetMicros() * 1000L;
+        this.applyDelay = plugin.getSyncMetrics().timer("balsync_apply_delay");
+        this.runTime = plugin.getSyncMetrics().timer("balsync_apply_tick");
+        this.task = Bukkit.getScheduler().runTaskTimer(plugin, this, 1L, 1L);
+    }
+
+    public void enqueue(UUID playerUUID, double amount) {
+        boolean[] added = new boolean[1];
+        pending.compute(playerUUID, (uuid, queued) -> {
+            if (queued == null) {
+                added[0] = true;
+                return new Correction(uuid, amount, System.nanoTime());
+            }
+            // Keep the time the first one has been waiting
+            return new Correction(uuid, queued.amount() + amount, queued.queuedAtNanos());
+        });
+        if (added[0]) {
+            order.add(playerUUID);
+        }
+    }
+
+    @Override
+    public void run() {
+        if (order.isEmpty()) {
+            return;
+        }
+
+        long start = System.nanoTime();
+        long deadline = start + budgetNanos;
+        int applied = 0;
+        UUID playerUUID;
+        // At least one per tick, so a tiny budget still makes progress
+        while ((applied == 0 || System.nanoTime() < deadline) && (playerUUID = order.poll()) != null) {
+            Correction correction = pending.remove(playerUUID);
+            if (correction != null) {
+                handler.accept(correction);
+                applyDelay.recordSince(correction.queuedAtNanos());
+                applied++;
+            }
+        }
+
+        long elapsed = System.nanoTime() - start;
+        runTime.record(elapsed);
+        lastRunMicros = elapsed / 1000;
+        lastRunApplied = applied;
+    }
+
+    public int getBacklog() {
+        return pending.size();
+    }
+
+    public long getLastRunMicros() {
+        return lastRunMicros;
+    }
+
+    public int getLastRunApplied() {
+        return lastRunApplied;
+    }
+
+    public void shutdown() {
+        if (task != null) {
+            task.cancel();
+            task = null;
+        }
+        pending.clear();
+        order.clear();
+    }
+
+    // queuedAtNanos: when the first still-pending correction for the player was queued
+    public record Correction(UUID playerUUID, double amount, long queuedAtNanos) {
+    }
+}
@@ -0,0 +1,250 @@
+package com.user404_.balsync;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only write-ahead journal for balance deltas in {@code plugins/BalSync/journal}. Every
+ * delta gets a sequence number and is appended to the active segment file before it is queued for
+ * the database; appends only go to memory and are written and fsynced in groups by
+ * {@link #sync()}, so a crash loses what was appended since the last sync
+ * ({@code settings.journal.sync-interval-ms}, or nothing if that is 0 and every append is
+ * synced). The database keeps the highest sequence number it has committed per server (in the
+ * same transaction as the deltas), so after a crash exactly the unconfirmed records are
+ * replayed. Segments are named after their first sequence number and deleted once every record
+ * in them is confirmed.
+ * <p>
+ * Record layout: payload length (int), then seq (long), UUID (2 longs), delta (double), name
+ * length (short) and name bytes, then a CRC32 of the payload (int). A torn record at the end of a
+ * segment is cut off when the journal is opened.
+ */
+public class BalanceJournal {
+    private static final String SUFFIX = ".log";
+
+    private final File directory;
+    private final long segmentSize;
+    private final List<Segment> segments = new ArrayList<>();
+    private final List<Record> recovered = new ArrayList<>();
+    // nextSeq when the journal was opened
+    private final long firstSessionSeq;
+    private ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+    private FileChannel channel;
+    private long nextSeq;
+    private long activeSize;
+
+    public BalanceJournal(File directory, long segmentSize) throws IOException {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        directory.mkdirs();
+
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(SUFFIX));
+        Arrays.sort(files == null ? new File[0] : files, (a, b) -> Long.compare(firstSeqOf(a), firstSeqOf(b)));
+        nextSeq = 1;
+        for (File file : files == null ? new File[0] : files) {
+            long firstSeq = firstSeqOf(file);
+            long lastSeq = readSegment(file);
+            segments.add(new Segment(file, firstSeq, lastSeq));
+            // An empty segment still remembers where the numbering continues
+            nextSeq = Math.max(nextSeq, Math.max(firstSeq, lastSeq + 1));
+        }
+        firstSessionSeq = nextSeq;
+        openSegment();
+    }
+
+    /** Records found on disk when the journal was opened, oldest first. */
+    public List<Record> getRecovered() {
+        return recovered;
+    }
+
+    public void clearRecovered() {
+        recovered.clear();
+    }
+
+    /** Append a delta to the in-memory buffer and return its sequence number. */
+    public synchronized long append(UUID playerUUID, String playerName, double delta) {
+        byte[] name = playerName == null ? new byte[0] : playerName.getBytes(StandardCharsets.UTF_8);
+        int payload = 8 + 16 + 8 + 2 + name.length;
+        if (buffer.remaining() < 4 + payload + 4) {
+            buffer = grow(buffer, 4 + payload + 4);
+        }
+
+        long seq = nextSeq++;
+        buffer.putInt(payload);
+        int start = buffer.position();
+        buffer.putLong(seq);
+        buffer.putLong(playerUUID.getMostSignificantBits());
+        buffer.putLong(playerUUID.getLeastSignificantBits());
+        buffer.putDouble(delta);
+        buffer.putShort((short) name.length);
+        buffer.put(name);
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), start, payload);
+        buffer.putInt((int) crc.getValue());
+
+        segments.get(segments.size() - 1).lastSeq = seq;
+        return seq;
+    }
+
+    /** Highest sequence number handed out so far. */
+    public synchronized long getLastSeq() {
+        return nextSeq - 1;
+    }
+
+    /** First sequence number handed out since the journal was opened. */
+    public long getFirstSessionSeq() {
+        return firstSessionSeq;
+    }
+
+    /**
+     * Continue the numbering in a fresh segment after {@code seq} (or after the last number handed
+     * out, if that is higher), for when the database has committed higher sequence numbers than
+     * the files on disk know about. Returns the last number of the old numbering.
+     */
+    public synchronized long skipTo(long seq) throws IOException {
+        sync();
+        channel.close();
+        nextSeq = Math.max(nextSeq, seq + 1);
+        openSegment();
+        return nextSeq - 1;
+    }
+
+    // Write the buffered records to the active segment and force them to disk
+    public synchronized void sync() throws IOException {
+        if (buffer.position() == 0) {
+            return;
+        }
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            activeSize += channel.write(buffer);
+        }
+        buffer.clear();
+        channel.force(false);
+
+        if (activeSize >= segmentSize) {
+            channel.close();
+            openSegment();
+        }
+    }
+
+    /**
+     * Delete the segments whose records are all committed up to {@code confirmedSeq}. The active
+     * segment is replaced by a fresh one if nothing in it is still unconfirmed.
+     */
+    public synchronized void confirm(long confirmedSeq) throws IOException {
+        Segment active = segments.get(segments.size() - 1);
+        if (active.lastSeq >= active.firstSeq && active.lastSeq <= confirmedSeq && buffer.position() == 0) {
+            channel.close();
+            openSegment();
+        }
+
+        for (int i = 0; i < segments.size() - 1; ) {
+            Segment segment = segments.get(i);
+            if (segment.lastSeq <= confirmedSeq) {
+                Files.deleteIfExists(segment.file.toPath());
+                segments.remove(i);
+            } else {
+                i++;
+            }
+        }
+    }
+
+    public synchronized int getSegmentCount() {
+        return segments.size();
+    }
+
+    public synchronized void close() throws IOException {
+        sync();
+        channel.close();
+    }
+
+    private void openSegment() throws IOException {
+        File file = new File(directory, String.format("%019d%s", nextSeq, SUFFIX));
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+        activeSize = channel.size();
+        // The name alone keeps the numbering if the segment is empty, so make it durable
+        channel.force(true);
+        if (segments.isEmpty() || !segments.get(segments.size() - 1).file.equals(file)) {
+            segments.add(new Segment(file, nextSeq, nextSeq - 1));
+        }
+    }
+
+    // Read all intact records of a segment into recovered, cut off a torn tail. Returns the last seq.
+    private long readSegment(File file) throws IOException {
+        long lastSeq = firstSeqOf(file) - 1;
+        try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer data = ByteBuffer.allocate((int) in.size());
+            while (data.hasRemaining() && in.read(data) >= 0) {
+                // read everything
+            }
+            data.flip();
+
+            int valid = 0;
+            while (data.remaining() >= 4) {
+                int payload = data.getInt();
+                if (payload < 34 || data.remaining() < payload + 4) {
+                    break;
+                }
+                int start = data.position();
+                CRC32 crc = new CRC32();
+                crc.update(data.array(), start, payload);
+                long seq = data.getLong();
+                UUID uuid = new UUID(data.getLong(), data.getLong());
+                double delta = data.getDouble();
+                byte[] name = new byte[data.getShort()];
+                data.get(name);
+                if (data.position() != start + payload || data.getInt() != (int) crc.getValue()) {
+                    break;
+                }
+                recovered.add(new Record(seq, uuid, name.length == 0 ? null : new String(name, StandardCharsets.UTF_8), delta));
+                lastSeq = seq;
+                valid = data.position();
+            }
+            if (valid < in.size()) {
+                in.truncate(valid);
+            }
+        }
+        return lastSeq;
+    }
+
+    private static long firstSeqOf(File file) {
+        String name = file.getName();
+        try {
+            return Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return 1;
+        }
+    }
+
+    private static ByteBuffer grow(ByteBuffer buffer, int needed) {
+        ByteBuffer grown = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + needed));
+        buffer.flip();
+        grown.put(buffer);
+        return grown;
+    }
+
+    public record Record(long seq, UUID uuid, String name, double delta) {
+    }
+
+    private static final class Segment {
+        final File file;
+        final long firstSeq;
+        long lastSeq;
+
+        Segment(File file, long firstSeq, long lastSeq) {
+            this.file = file;
+            this.firstSeq = firstSeq;
+            this.lastSeq = lastSeq;
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package com.user404_.balsync;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Coalesces balance loads that arrive within {@code settings.load-batch.window-ms} into one
+ * IN-query. When a backend restarts and hundreds of players reconnect at once, this costs a
+ * handful of queries on one pooled connection instead of one connection per player. Loads for
+ * the same player share one result. With a window of 0 every load is its own query. A batcher
+ * created with {@code fromReplica} reads from the read replica where it can.
+ */
+public class BalanceLoadBatcher {
+    private final DatabaseManager databaseManager;
+    private final long windowMillis;
+    private final int maxBatchSize;
+    private final Map<UUID, CompletableFuture<Double>> pending = new ConcurrentHashMap<>();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private final ScheduledExecutorService loader;
+    private final boolean fromReplica;
+
+    public BalanceLoadBatcher(BalSyncPlugin plugin, DatabaseManager databaseManager) {
+        this(plugin, databaseManager, false);
+    }
+
+    public BalanceLoadBatcher(BalSyncPlugin plugin, DatabaseManager databaseManager, boolean fromReplica) {
+        this.databaseManager = databaseManager;
+        this.fromReplica = fromReplica;
+        this.windowMillis = plugin.getConfigManager().getLoadBatchWindow();
+        this.maxBatchSize = plugin.getConfigManager().getSaveBatchSize();
+        this.loader = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "BalSync-Loader");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /** Load a player's database balance. Completes exceptionally with the SQLException on failure. */
+    public CompletableFuture<Double> load(UUID playerUUID) {
+        if (windowMillis <= 0) {
+            return fromReplica
+                    ? databaseManager.supplyAsync(() -> databaseManager.getBalances(List.of(playerUUID), true).get(playerUUID))
+                    : databaseManager.getBalanceAsync(playerUUID);
+        }
+
+        CompletableFuture<Double> future = pending.computeIfAbsent(playerUUID, uuid -> new CompletableFuture<>());
+        try {
+            if (pending.size() >= maxBatchSize) {
+                // Full batch, don't wait for the window
+                loader.execute(this::flush);
+            } else if (flushScheduled.compareAndSet(false, true)) {
+                loader.schedule(this::flush, windowMillis, TimeUnit.MILLISECONDS);
+            }
+        } catch (RejectedExecutionException e) {
+            // Shutting down
+            pending.remove(playerUUID, future);
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+    public void shutdown() {
+        loader.shutdown();
+        try {
+            // Let a running query finish, its callers are waiting for it
+            loader.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        RejectedExecutionException stopped = new RejectedExecutionException("Balance loader stopped");
+        for (UUID uuid : pending.keySet()) {
+            CompletableFuture<Double> future = pending.remove(uuid);
+            if (future != null) {
+                future.completeExceptionally(stopped);
+            }
+        }
+    }
+
+    private void flush() {
+        flushScheduled.set(false);
+        if (pending.isEmpty()) {
+            return;
+        }
+
+        Map<UUID, CompletableFuture<Double>> batch = new HashMap<>();
+        for (UUID uuid : pending.keySet()) {
+            CompletableFuture<Double> future = pending.remove(uuid);
+            if (future != null) {
+                batch.put(uuid, future);
+            }
+        }
+        if (batch.isEmpty()) {
+            return;
+        }
+
+        List<UUID> uuids = new ArrayList<>(batch.keySet());
+        try {
+            Map<UUID, Double> balances = databaseManager.getBalances(uuids, fromReplica);
+            batch.forEach((uuid, future) -> future.complete(balances.get(uuid)));
+        } catch (SQLException | RuntimeException e) {
+            batch.values().forEach(future -> future.completeExceptionally(e));
+        }
+    }
+}
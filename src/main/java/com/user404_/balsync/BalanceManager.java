@@ -7,278 +7,722 @@ import org.bukkit.OfflinePlayer;
 import org.bukkit.entity.Player;
 import org.bukkit.scheduler.BukkitTask;
 
-import java.sql.Connection;
-import java.sql.PreparedStatement;
-import java.sql.ResultSet;
+import java.io.File;
+import java.io.IOException;
 import java.sql.SQLException;
+import java.sql.Timestamp;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 
 public class BalanceManager {
     private final BalSyncPlugin plugin;
     private final Economy economy;
     private final DatabaseManager databaseManager;
-    private BukkitTask dbPollingTask;
-    private final Map<UUID, Double> lastKnownBalances = new ConcurrentHashMap<>();
-    private final Map<UUID, Double> lastKnownDbBalances = new ConcurrentHashMap<>();
+    private volatile BukkitTask dbPollingTask;
+    private BukkitTask evictionTask;
+    private BukkitTask compactionTask;
+    // null if change notifications are off
+    private final ChangeNotifier changeNotifier;
+    // null if the host-local shared cache is off
+    private final SharedBalanceCache sharedCache;
+    private volatile int lastCompactedRows;
+    // Database time up to which changes have been polled (null = start fresh)
+    private volatile Timestamp pollWatermark;
+    private final AtomicBoolean polling = new AtomicBoolean();
+    // null if polling is off
+    private final AdaptivePollInterval pollInterval;
+    private volatile boolean pollingStopped;
+    // Last known server-side and database balance per player
+    private final BalanceTracker tracker = new BalanceTracker();
+    private final BalanceSync sync;
+    // The economy as BalanceSync sees it, main thread only
+    private final BalanceSync.Wallet wallet = new BalanceSync.Wallet() {
+        @Override
+        public double getBalance(UUID playerUUID) {
+            return economy.getBalance(Bukkit.getOfflinePlayer(playerUUID));
+        }
+
+        @Override
+        public void add(UUID playerUUID, double amount) {
+            OfflinePlayer player = Bukkit.getOfflinePlayer(playerUUID);
+            if (amount > 0) {
+                economy.depositPlayer(player, amount);
+            } else if (amount < 0) {
+                economy.withdrawPlayer(player, -amount);
+            }
+        }
+    };
+    // Players whose balance moved away from the server-side snapshot since the last save
+    private final Set<UUID> dirtyPlayers = ConcurrentHashMap.newKeySet();
+    private final DeltaWriteQueue deltaWriteQueue;
+    private final BalanceApplier balanceApplier;
+    private OfflineBalanceScanner offlineScanner;
+    private final JoinPrefetcher joinPrefetcher;
+    private final BalanceLoadBatcher loadBatcher;
+    // Same as loadBatcher unless join loads may read from the replica
+    private final BalanceLoadBatcher joinLoadBatcher;
+    private final SyncMetrics metrics;
 
     public void saveAllBalances() {
         if (plugin.getConfigManager().isLogSaveAllMessages()) {
             plugin.getPluginLogger().info("Saving all player balances to database...");
         }
 
-        Bukkit.getScheduler().runTaskAsynchronously(plugin, () -> {
-            int saved = 0;
+        databaseManager.getExecutor().execute(() -> {
+            List<DatabaseManager.BalanceEntry> entries = new ArrayList<>();
+            int queued = 0;
             for (OfflinePlayer player : Bukkit.getOfflinePlayers()) {
-                try {
-                    if (economy.hasAccount(player)) {
-                        double balance = economy.getBalance(player);
-                        databaseManager.saveBalance(player.getUniqueId(), player.getName(), balance);
-                        lastKnownBalances.put(player.getUniqueId(), balance);
-                        lastKnownDbBalances.put(player.getUniqueId(), balance);
-                        saved++;
+                if (economy.hasAccount(player)) {
+                    UUID uuid = player.getUniqueId();
+                    // Tracked players go through the delta writer, the rest is overwritten in bulk
+                    if (Double.isNaN(sync.queueBalanceChange(uuid, player.getName(), () -> economy.getBalance(player)))) {
+                        // The balance the call above took as the snapshot
+                        entries.add(new DatabaseManager.BalanceEntry(uuid, player.getName(), tracker.getServerBalance(uuid)));
+                    } else {
+                        queued++;
                     }
-                } catch (SQLException e) {
-                    plugin.getPluginLogger().log(Level.WARNING,
-                            "Failed to save balance for: " + player.getName(), e);
                 }
             }
+            deltaWriteQueue.requestFlush();
+
+            long start = System.nanoTime();
+            int saved = saveInChunks(entries);
+            metrics.timer("balsync_save", "kind=\"all\"").recordSince(start);
+            long elapsedMillis = Math.max(1, (System.nanoTime() - start) / 1_000_000);
+
             if (plugin.getConfigManager().isLogSaveAllMessages()) {
-                plugin.getPluginLogger().info("Saved " + saved + " player balances to database.");
+                plugin.getPluginLogger().info("Saved " + (saved + queued) + " player balances to database in " +
+                        elapsedMillis + " ms (" + (saved * 1000L / elapsedMillis) + " rows/s).");
             }
         });
     }
 
+    // Periodic save: only write players that changed since the last cycle
+    public void saveDirtyBalances() {
+        databaseManager.getExecutor().execute(() -> {
+            // Online balances can move at any time, compare them against the last snapshot
+            for (Player player : Bukkit.getOnlinePlayers()) {
+                double lastBalance = tracker.getServerBalance(player.getUniqueId());
+                if (Double.isNaN(lastBalance)
+                        || Math.abs(BalanceTracker.roundToCents(economy.getBalance(player)) - lastBalance) > 0.001) {
+                    dirtyPlayers.add(player.getUniqueId());
+                }
+            }
+
+            if (dirtyPlayers.isEmpty()) {
+                return;
+            }
+
+            List<UUID> untracked = new ArrayList<>();
+            int queued = 0;
+            long start = System.nanoTime();
+            Iterator<UUID> iterator = dirtyPlayers.iterator();
+            while (iterator.hasNext()) {
+                UUID uuid = iterator.next();
+                iterator.remove();
+                OfflinePlayer player = Bukkit.getOfflinePlayer(uuid);
+                if (!economy.hasAccount(player)) {
+                    continue;
+                }
+                if (Double.isNaN(sync.queueBalanceChange(uuid, player.getName(), () -> economy.getBalance(player)))) {
+                    untracked.add(uuid);
+                } else {
+                    queued++;
+                }
+            }
+            adoptDbBalances(untracked);
+            metrics.timer("balsync_save", "kind=\"dirty\"").recordSince(start);
+            long elapsedMillis = Math.max(1, (System.nanoTime() - start) / 1_000_000);
+
+            if (plugin.getConfigManager().isLogSaveAllMessages() && queued > 0) {
+                plugin.getPluginLogger().info("Queued " + queued + " changed player balances in " +
+                        elapsedMillis + " ms.");
+            }
+        });
+    }
+
+    /**
+     * Called by {@link SyncingEconomy} right after a successful deposit or withdrawal, on the
+     * thread that made it, see {@link BalanceSync#recordTransaction}.
+     */
+    public void recordTransaction(OfflinePlayer player, double amount) {
+        sync.recordTransaction(player.getUniqueId(), player.getName(), () -> economy.getBalance(player), amount);
+    }
+
+    // Called by the delta writer once a player's delta has been committed
+    private void onDeltaWritten(UUID playerUUID, double delta, double newDbBalance, long version, long writeStartedAt) {
+        cacheBalance(playerUUID, newDbBalance, writeStartedAt);
+        sync.onDeltaWritten(playerUUID, delta, newDbBalance, version);
+    }
+
+    public int getPendingWriteCount() {
+        return deltaWriteQueue.getPendingCount();
+    }
+
+    public int getDeferredLoadCount() {
+        return sync.getDeferred().size();
+    }
+
+    public int getJournalSegmentCount() {
+        return deltaWriteQueue.getJournalSegmentCount();
+    }
+
+    public void markDirty(UUID playerUUID) {
+        dirtyPlayers.add(playerUUID);
+    }
+
+    // Write balances chunk by chunk, one transaction per chunk. Returns the number of rows saved.
+    private int saveInChunks(List<DatabaseManager.BalanceEntry> entries) {
+        if (!entries.isEmpty() && !databaseManager.isAvailable()) {
+            // Database is down, try again next cycle
+            for (DatabaseManager.BalanceEntry entry : entries) {
+                dirtyPlayers.add(entry.uuid());
+            }
+            return 0;
+        }
+        int chunkSize = plugin.getConfigManager().getSaveBatchSize();
+        int saved = 0;
+        for (int from = 0; from < entries.size(); from += chunkSize) {
+            List<DatabaseManager.BalanceEntry> chunk =
+                    entries.subList(from, Math.min(entries.size(), from + chunkSize));
+            try {
+                long version = System.currentTimeMillis();
+                databaseManager.saveBalances(chunk);
+                for (DatabaseManager.BalanceEntry entry : chunk) {
+                    tracker.setBoth(entry.uuid(), entry.balance());
+                    cacheBalance(entry.uuid(), entry.balance(), version);
+                }
+                publishChanges(chunk);
+                saved += chunk.size();
+            } catch (SQLException e) {
+                // Keep them for the next cycle
+                for (DatabaseManager.BalanceEntry entry : chunk) {
+                    dirtyPlayers.add(entry.uuid());
+                }
+                plugin.getPluginLogger().log(Level.WARNING,
+                        "Failed to save balances " + from + "-" + (from + chunk.size() - 1) +
+                                " of " + entries.size(), e);
+            }
+        }
+        return saved;
+    }
+
     public BalanceManager(BalSyncPlugin plugin, Economy economy, DatabaseManager databaseManager) {
         this.plugin = plugin;
         this.economy = economy;
         this.databaseManager = databaseManager;
+        this.metrics = plugin.getSyncMetrics();
+        this.sharedCache = openSharedCache();
+        this.changeNotifier = startChangeNotifier();
+        this.deltaWriteQueue = new DeltaWriteQueue(plugin, databaseManager, this::onDeltaWritten, changeNotifier);
+        this.sync = new BalanceSync(tracker, deltaWriteQueue, this::applyDbChangeToPlayer);
+        this.balanceApplier = new BalanceApplier(plugin, this::applyCorrection);
+        this.joinPrefetcher = new JoinPrefetcher(plugin);
+        this.loadBatcher = new BalanceLoadBatcher(plugin, databaseManager);
+        this.joinLoadBatcher = databaseManager.getReadReplica() != null && plugin.getConfigManager().isReplicaUsedForJoins()
+                ? new BalanceLoadBatcher(plugin, databaseManager, true) : loadBatcher;
+        this.pollInterval = createPollInterval();
+        registerGauges();
         startDbPolling();
         startOfflineMonitoring();
+        this.evictionTask = Bukkit.getScheduler().runTaskTimerAsynchronously(plugin,
+                this::evictIdleSnapshots, 1200L, 1200L);
+        if (databaseManager.isLedgerEnabled()) {
+            long period = plugin.getConfigManager().getLedgerCompactInterval() * 20L;
+            this.compactionTask = Bukkit.getScheduler().runTaskTimerAsynchronously(plugin,
+                    this::compactLedger, period, period);
+        }
     }
 
-    // MODIFIED: Added reset functionality
-    public void loadPlayerBalance(Player player) {
-        Bukkit.getScheduler().runTaskAsynchronously(plugin, () -> {
-            try {
-                double databaseBalance = databaseManager.getBalance(player.getUniqueId());
+    private void registerGauges() {
+        metrics.gauge("balsync_pending_writes", deltaWriteQueue::getPendingCount);
+        metrics.gauge("balsync_journal_segments", deltaWriteQueue::getJournalSegmentCount);
+        metrics.gauge("balsync_apply_backlog", balanceApplier::getBacklog);
+        metrics.gauge("balsync_deferred_loads", () -> sync.getDeferred().size());
+        metrics.gauge("balsync_dirty_players", dirtyPlayers::size);
+        metrics.gauge("balsync_tracked_players", tracker::size);
+        metrics.gauge("balsync_tracker_lookups", "result=\"hit\"", tracker::getHits);
+        metrics.gauge("balsync_tracker_lookups", "result=\"miss\"", tracker::getMisses);
+        metrics.gauge("balsync_join_prefetch", "result=\"hit\"", joinPrefetcher::getHits);
+        metrics.gauge("balsync_join_prefetch", "result=\"miss\"", joinPrefetcher::getMisses);
+        if (sharedCache != null) {
+            metrics.gauge("balsync_shared_cache_lookups", "result=\"hit\"", sharedCache::getHits);
+            metrics.gauge("balsync_shared_cache_lookups", "result=\"miss\"", sharedCache::getMisses);
+        }
+        metrics.describe("balsync_join_sync", "Time from join until the database balance was applied");
+        metrics.describe("balsync_apply_delay", "Time a polled change waited for the main thread");
+        metrics.describe("balsync_delta_flush", "Write of one batch of queued balance deltas");
+        metrics.describe("balsync_notify_skipped", "Change notifications for a row version already seen");
+        metrics.describe("balsync_db_call", "Database call, after a pool slot was free");
+        metrics.describe("balsync_db_permit_wait", "Wait for a free database slot");
+        metrics.describe("balsync_pool_acquire", "Wait for a pooled connection");
+        metrics.describe("balsync_pool_usage", "Time a pooled connection was borrowed");
+    }
+
+    // Read the balance while the player is still logging in (called on the async login thread)
+    public void prefetchBalance(UUID playerUUID) {
+        if (!databaseManager.isAvailable()) {
+            return;
+        }
+        if (deltaWriteQueue.hasPending(playerUUID)) {
+            // Our own write for this player isn't in the database yet, load on join instead
+            deltaWriteQueue.requestFlush();
+            return;
+        }
+        try {
+            // Blocks this login thread only, the query itself is shared with other logins
+            long readStartedAt = System.currentTimeMillis();
+            joinPrefetcher.put(playerUUID, loadBalance(playerUUID).join(), readStartedAt);
+        } catch (CompletionException e) {
+            plugin.getPluginLogger().log(Level.WARNING,
+                    "Failed to prefetch balance for " + playerUUID + ", loading on join", e.getCause());
+        }
+    }
 
+    public void discardPrefetchedBalance(UUID playerUUID) {
+        joinPrefetcher.discard(playerUUID);
+    }
+
+    // Apply the prefetched balance on the next tick, or fall back to the delayed load
+    public void syncOnJoin(Player player, long joinedAtNanos) {
+        if (pollInterval != null) {
+            pollInterval.onActivity();
+        }
+        JoinPrefetcher.Prefetched prefetched = joinPrefetcher.take(player.getUniqueId());
+        if (prefetched == null && !databaseManager.isAvailable()) {
+            // Database is down: use the last known balance if there is one and load it for real later
+            double lastKnown = tracker.getDbBalance(player.getUniqueId());
+            sync.defer(player.getUniqueId());
+            if (!Double.isNaN(lastKnown)) {
+                // Not a fresh read, the deferred load applies whatever changed since
                 Bukkit.getScheduler().runTask(plugin, () -> {
-                    // Ensure player has account
-                    if (!economy.hasAccount(player)) {
-                        economy.createPlayerAccount(player);
+                    if (player.isOnline() && applyLoadedBalance(player, lastKnown, Long.MIN_VALUE)) {
+                        joinPrefetcher.recordJoinLatency(joinedAtNanos);
                     }
+                });
+            } else {
+                // Nothing to go on, keep the local balance as the starting point
+                tracker.setBoth(player.getUniqueId(), economy.getBalance(player));
+            }
+            return;
+        }
+        if (prefetched == null) {
+            Bukkit.getScheduler().runTaskLater(plugin, () -> {
+                if (player.isOnline()) {
+                    loadPlayerBalance(player, joinedAtNanos);
+                }
+            }, 40L);
+            return;
+        }
 
-                    // RESET TO ZERO if configured
-                    double currentBalance = economy.getBalance(player);
-                    if (plugin.getConfigManager().isResetOnJoin()) {
-                        if (currentBalance > 0) {
-                            economy.withdrawPlayer(player, currentBalance);
-                        } else if (currentBalance < 0) {
-                            economy.depositPlayer(player, Math.abs(currentBalance));
-                        }
-                        if (plugin.getConfigManager().isLogBalanceActions()) {
-                            plugin.getLogger().info("Reset balance to 0 for " + player.getName());
-                        }
-                        currentBalance = 0;
-                    }
+        // Next tick, so the economy plugin's own join handling has run
+        Bukkit.getScheduler().runTask(plugin, () ->
+                applyOnJoin(player, prefetched.balance(), prefetched.readStartedAt(), joinedAtNanos));
+    }
 
-                    // Apply database balance (OVERWRITE)
-                    double difference = databaseBalance - currentBalance;
-                    if (difference > 0) {
-                        economy.depositPlayer(player, difference);
-                    } else if (difference < 0) {
-                        economy.withdrawPlayer(player, Math.abs(difference));
-                    }
+    public void loadPlayerBalance(Player player) {
+        loadPlayerBalance(player, -1);
+    }
 
-                    // Update tracking maps
-                    lastKnownBalances.put(player.getUniqueId(), databaseBalance);
-                    lastKnownDbBalances.put(player.getUniqueId(), databaseBalance);
+    /**
+     * Load a balance for a join: from the host's shared cache if it has a recent enough entry,
+     * otherwise from the database (batched) and then stored in the cache. A cached balance is
+     * checked against the database in the next poll, together with the other cache hits.
+     */
+    private CompletableFuture<Double> loadBalance(UUID playerUUID) {
+        if (sharedCache == null) {
+            return joinLoadBatcher.load(playerUUID);
+        }
+        double cached = sharedCache.get(playerUUID, plugin.getConfigManager().getSharedCacheMaxAge() * 1000L);
+        if (!Double.isNaN(cached)) {
+            sync.defer(playerUUID);
+            return CompletableFuture.completedFuture(cached);
+        }
+        long version = System.currentTimeMillis();
+        return joinLoadBatcher.load(playerUUID).thenApply(balance -> {
+            sharedCache.put(playerUUID, balance, version);
+            return balance;
+        });
+    }
 
-                    if (plugin.getConfigManager().isLogBalanceActions()) {
-                        plugin.getLogger().info("Balance loaded for " + player.getName() +
-                                ": " + databaseBalance + " (from DB)");
-                    }
+    private SharedBalanceCache openSharedCache() {
+        if (!plugin.getConfigManager().isSharedCacheEnabled()) {
+            return null;
+        }
+        ConfigManager config = plugin.getConfigManager();
+        String path = config.getSharedCacheFile();
+        File file = path.isEmpty()
+                ? new File(System.getProperty("java.io.tmpdir"), ("balsync-" + config.getDatabaseHost() + "-" +
+                        config.getDatabasePort() + "-" + config.getDatabaseName() + "-" + config.getTableName())
+                        .replaceAll("[^A-Za-z0-9._-]", "_") + ".cache")
+                : new File(path);
+        try {
+            SharedBalanceCache cache = new SharedBalanceCache(file, config.getSharedCacheSlots());
+            plugin.getPluginLogger().info("Using the shared balance cache " + file.getAbsolutePath() +
+                    " (" + cache.getSlots() + " slots).");
+            return cache;
+        } catch (IOException | RuntimeException e) {
+            plugin.getPluginLogger().log(Level.SEVERE, "Failed to open the shared balance cache " + file +
+                    ", loading from the database only", e);
+            return null;
+        }
+    }
 
-                    // Send message to player
-                    if (plugin.getConfigManager().isNotifyPlayerOnSync()) {
-                        String message = plugin.getTranslationManager().formatMessage("balance-loaded");
-                        if ("actionbar".equalsIgnoreCase(plugin.getConfigManager().getMessageDisplay())) {
-                            player.sendActionBar(message);
-                        } else {
-                            player.sendMessage(message);
-                        }
-                    }
-                });
+    // Tell the other servers on this host about a balance known to be in the database
+    private void cacheBalance(UUID playerUUID, double balance, long version) {
+        if (sharedCache != null) {
+            sharedCache.put(playerUUID, balance, version);
+        }
+    }
 
-            } catch (SQLException e) {
+    // MODIFIED: Added reset functionality
+    private void loadPlayerBalance(Player player, long joinedAtNanos) {
+        long readStartedAt = System.currentTimeMillis();
+        loadBalance(player.getUniqueId()).whenComplete((databaseBalance, error) -> {
+            if (error != null) {
                 plugin.getPluginLogger().log(Level.SEVERE,
-                        "Failed to load balance for player: " + player.getName(), e);
+                        "Failed to load balance for player: " + player.getName(), error);
+                return;
             }
+
+            Bukkit.getScheduler().runTask(plugin, () -> applyOnJoin(player, databaseBalance, readStartedAt, joinedAtNanos));
         });
     }
 
+    // Main thread. If the loaded balance can't be used (own deltas not written yet, or already
+    // outdated), load again 40 ticks later.
+    private void applyOnJoin(Player player, double databaseBalance, long readStartedAt, long joinedAtNanos) {
+        if (!player.isOnline()) {
+            return;
+        }
+        if (applyLoadedBalance(player, databaseBalance, readStartedAt)) {
+            if (joinedAtNanos >= 0) {
+                joinPrefetcher.recordJoinLatency(joinedAtNanos);
+            }
+            return;
+        }
+        deltaWriteQueue.requestFlush();
+        Bukkit.getScheduler().runTaskLater(plugin, () -> {
+            if (player.isOnline()) {
+                loadPlayerBalance(player, joinedAtNanos);
+            }
+        }, 40L);
+    }
+
+    // Overwrite the player's balance with the database balance (main thread). False if it
+    // couldn't be used, see BalanceSync.applyLoadedBalance.
+    private boolean applyLoadedBalance(Player player, double databaseBalance, long readStartedAt) {
+        // Ensure player has account
+        if (!economy.hasAccount(player)) {
+            economy.createPlayerAccount(player);
+        }
+
+        // Apply database balance (OVERWRITE), RESET TO ZERO first if configured. Both snapshots follow.
+        boolean reset = plugin.getConfigManager().isResetOnJoin();
+        if (!sync.applyLoadedBalance(wallet, player.getUniqueId(), databaseBalance, readStartedAt, reset)) {
+            return false;
+        }
+
+        if (plugin.getConfigManager().isLogBalanceActions()) {
+            if (reset) {
+                plugin.getLogger().info("Reset balance to 0 for " + player.getName());
+            }
+            plugin.getLogger().info("Balance loaded for " + player.getName() +
+                    ": " + databaseBalance + " (from DB)");
+        }
+
+        // Send message to player
+        if (plugin.getConfigManager().isNotifyPlayerOnSync()) {
+            String message = plugin.getTranslationManager().formatMessage("balance-loaded");
+            if ("actionbar".equalsIgnoreCase(plugin.getConfigManager().getMessageDisplay())) {
+                player.sendActionBar(message);
+            } else {
+                player.sendMessage(message);
+            }
+        }
+        return true;
+    }
+
+    private AdaptivePollInterval createPollInterval() {
+        // With notifications the poll is only the safety net
+        ConfigManager config = plugin.getConfigManager();
+        int interval = changeNotifier != null ? config.getChangeNotifyPollInterval() : config.getDbPollInterval();
+        if (interval <= 0) {
+            return null;
+        }
+        return new AdaptivePollInterval(interval * 1000L, config.getDbPollMaxInterval() * 1000L,
+                config.getDbPollJitter());
+    }
+
     // Poll database for external changes
     private void startDbPolling() {
-        int interval = plugin.getConfigManager().getDbPollInterval();
-        if (interval <= 0) return;
+        if (pollInterval == null) return;
 
-        dbPollingTask = Bukkit.getScheduler().runTaskTimerAsynchronously(plugin, () -> {
-            pollDatabaseForChanges();
-        }, interval * 20L, interval * 20L);
+        scheduleNextPoll(pollInterval.firstDelayMillis());
 
-        plugin.getLogger().info("Started database polling every " + interval + " seconds");
+        plugin.getLogger().info("Started database polling every " + pollInterval.getMinMillis() / 1000 + "-" +
+                pollInterval.getMaxMillis() / 1000 + " seconds");
     }
 
-    // Check database for balance changes and apply to online players
-    private void pollDatabaseForChanges() {
-        List<UUID> onlineUUIDs = getOnlinePlayerUUIDs();
-
-        // Keine online Spieler → nichts abfragen
-        if (onlineUUIDs.isEmpty()) {
+    // One poll at a time; the next one is scheduled when it is done, with a delay that depends on what it found
+    private void scheduleNextPoll(long delayMillis) {
+        if (pollingStopped) {
             return;
         }
+        dbPollingTask = Bukkit.getScheduler().runTaskLaterAsynchronously(plugin, () -> {
+            if (!requestPoll(() -> scheduleNextPoll(pollInterval.nextDelayMillis()))) {
+                // A poll requested by a notification gap is running, it counts as this one
+                scheduleNextPoll(pollInterval.nextDelayMillis());
+            }
+        }, Math.max(1, delayMillis / 50));
+    }
+
+    private void requestPoll() {
+        requestPoll(() -> { });
+    }
 
-        try (Connection conn = databaseManager.getConnection()) {
-            // Platzhalter für die IN-Klausel erstellen
-            StringBuilder placeholders = new StringBuilder();
-            for (int i = 0; i < onlineUUIDs.size(); i++) {
-                placeholders.append("?");
-                if (i < onlineUUIDs.size() - 1) {
-                    placeholders.append(",");
+    // Hand a poll to the database executor, skipped (false) while one is busy
+    private boolean requestPoll(Runnable then) {
+        if (!polling.compareAndSet(false, true)) {
+            return false;
+        }
+        databaseManager.getExecutor().execute(() -> {
+            boolean foundChanges = false;
+            try {
+                foundChanges = pollDatabaseForChanges();
+            } finally {
+                if (pollInterval != null) {
+                    pollInterval.onPoll(foundChanges);
                 }
+                polling.set(false);
+                then.run();
             }
+        });
+        return true;
+    }
 
-            String sql = String.format(
-                    "SELECT player_uuid, balance FROM %s WHERE player_uuid IN (%s)",
-                    plugin.getConfigManager().getTableName(),
-                    placeholders.toString()
-            );
+    private ChangeNotifier startChangeNotifier() {
+        ChangeNotifier notifier = ChangeNotifier.create(plugin);
+        if (notifier == null) {
+            return null;
+        }
+        try {
+            notifier.start(new ChangeNotifier.Listener() {
+                @Override
+                public void onChanged(UUID playerUUID, long version) {
+                    reloadChangedPlayer(playerUUID, version);
+                }
 
-            try (PreparedStatement stmt = conn.prepareStatement(sql)) {
-                // UUIDs als Parameter setzen
-                for (int i = 0; i < onlineUUIDs.size(); i++) {
-                    stmt.setString(i + 1, onlineUUIDs.get(i).toString());
+                @Override
+                public void onGap() {
+                    requestPoll();
                 }
+            });
+            return notifier;
+        } catch (IOException e) {
+            plugin.getPluginLogger().log(Level.SEVERE,
+                    "Failed to start change notifications, falling back to database polling only", e);
+            notifier.close();
+            return null;
+        }
+    }
 
-                ResultSet rs = stmt.executeQuery();
-                while (rs.next()) {
-                    UUID playerUUID = UUID.fromString(rs.getString("player_uuid"));
-                    double dbBalance = rs.getDouble("balance");
-
-                    // Prüfen, ob sich die Datenbank-Balance geändert hat
-                    Double lastDbBalance = lastKnownDbBalances.get(playerUUID);
-                    if (lastDbBalance == null || Math.abs(dbBalance - lastDbBalance) > 0.001) {
-                        // Datenbank hat sich geändert → auf Spieler anwenden
-                        applyDbChangeToPlayer(playerUUID, dbBalance, lastDbBalance);
-                        lastKnownDbBalances.put(playerUUID, dbBalance);
-                    }
+    private void publishChanges(List<DatabaseManager.BalanceEntry> entries) {
+        if (changeNotifier != null) {
+            // Overwrites don't read the version back, receivers reload these players
+            Map<UUID, Long> changed = new HashMap<>();
+            for (DatabaseManager.BalanceEntry entry : entries) {
+                changed.put(entry.uuid(), 0L);
+            }
+            changeNotifier.publish(changed);
+        }
+    }
+
+    // Another server wrote this player's balance, leaving the row at version (0 = unknown).
+    // Online players are reloaded right away unless a read or write of ours already got that far,
+    // the loads of a burst of notifications are combined by the batcher.
+    private void reloadChangedPlayer(UUID playerUUID, long version) {
+        if (sharedCache != null) {
+            // Whatever the host had is older than this change
+            sharedCache.invalidate(playerUUID);
+        }
+        if (Bukkit.getPlayer(playerUUID) == null || !databaseManager.isAvailable()) {
+            return;
+        }
+        if (sync.hasSeenVersion(playerUUID, version)) {
+            metrics.increment("balsync_notify_skipped");
+            return;
+        }
+        long readStartedAt = System.currentTimeMillis();
+        loadBatcher.load(playerUUID).whenComplete((balance, error) -> {
+            if (error != null) {
+                // The next poll picks it up
+                plugin.getPluginLogger().log(Level.FINE, "Failed to reload balance for " + playerUUID, error);
+            } else {
+                cacheBalance(playerUUID, balance, readStartedAt);
+                sync.handleDbBalance(playerUUID, balance, readStartedAt);
+            }
+        });
+    }
+
+    // Check database for balance changes and apply to online players. True if an online player's balance changed.
+    private boolean pollDatabaseForChanges() {
+        // Keine online Spieler → nichts abfragen, beim nächsten Mal frisch anfangen
+        if (Bukkit.getOnlinePlayers().isEmpty()) {
+            pollWatermark = null;
+            sync.getDeferred().clear();
+            return false;
+        }
+        // Circuit breaker open → back off until the probe is due
+        if (!databaseManager.isAvailable()) {
+            return false;
+        }
+
+        long start = System.nanoTime();
+        try {
+            // Nur Zeilen, die sich seit dem letzten Poll geändert haben
+            long readStartedAt = System.currentTimeMillis();
+            DatabaseManager.ChangeSet changeSet = databaseManager.getChangedBalancesSince(pollWatermark);
+            pollWatermark = changeSet.watermark();
+
+            boolean foundChanges = false;
+            for (DatabaseManager.BalanceChange change : changeSet.changes()) {
+                // Also players who aren't here, they may be on another server of this host
+                cacheBalance(change.uuid(), change.balance(), readStartedAt);
+                if (Bukkit.getPlayer(change.uuid()) != null) {
+                    foundChanges |= sync.handleDbBalance(change.uuid(), change.balance(), readStartedAt, change.version());
                 }
             }
+            loadDeferredPlayers();
+            // Keep polling at the shortest interval until the deferred players are loaded
+            foundChanges |= !sync.getDeferred().isEmpty();
+            metrics.timer("balsync_poll").recordSince(start);
+            return foundChanges;
         } catch (SQLException e) {
             plugin.getLogger().log(Level.WARNING, "Error polling database for changes", e);
+            return false;
         }
     }
 
-    // Apply database changes to online player
-    private void applyDbChangeToPlayer(UUID playerUUID, double newBalance, Double oldBalance) {
+    // Players who joined while the database was down get their real balance now, and players
+    // whose last read came in while a write of theirs was in flight are read again
+    private void loadDeferredPlayers() throws SQLException {
+        Set<UUID> deferred = sync.getDeferred();
+        List<UUID> due = new ArrayList<>();
+        for (UUID uuid : deferred) {
+            if (deferred.remove(uuid) && Bukkit.getPlayer(uuid) != null) {
+                due.add(uuid);
+            }
+        }
+        if (due.isEmpty()) {
+            return;
+        }
+
+        long readStartedAt = System.currentTimeMillis();
+        Map<UUID, Double> balances;
+        try {
+            balances = databaseManager.getBalances(due);
+        } catch (SQLException e) {
+            deferred.addAll(due);
+            throw e;
+        }
+        for (UUID uuid : due) {
+            cacheBalance(uuid, balances.get(uuid), readStartedAt);
+            sync.handleDbBalance(uuid, balances.get(uuid), readStartedAt);
+        }
+    }
+
+    // Apply database changes to online player (queued for the main-thread applier)
+    private void applyDbChangeToPlayer(UUID playerUUID, double amount, double newDbBalance) {
         Player player = Bukkit.getPlayer(playerUUID);
         if (player != null && player.isOnline()) {
             if (!player.hasPermission("balsync.sync")) {
                 return; // Player will not be synchronized
             }
-            Bukkit.getScheduler().runTask(plugin, () -> {
-                double currentBalance = economy.getBalance(player);
-                double difference = newBalance - currentBalance;
-
-                if (Math.abs(difference) > 0.001) {
-                    if (difference > 0) {
-                        economy.depositPlayer(player, difference);
-                    } else {
-                        economy.withdrawPlayer(player, Math.abs(difference));
-                    }
+            balanceApplier.enqueue(playerUUID, amount);
+        }
+    }
 
-                    lastKnownBalances.put(playerUUID, newBalance);
+    // Runs on the main thread, called by the BalanceApplier within its tick budget
+    private void applyCorrection(BalanceApplier.Correction correction) {
+        UUID playerUUID = correction.playerUUID();
+        Player player = Bukkit.getPlayer(playerUUID);
+        if (player == null || !player.isOnline()) {
+            return;
+        }
 
-                    if (plugin.getConfigManager().isLogBalanceActions()) {
-                        plugin.getLogger().info("Applied external DB change for " +
-                                player.getName() + ": " + newBalance);
-                    }
+        if (Math.abs(correction.amount()) > 0.001) {
+            double oldBalance = economy.getBalance(player);
+            sync.applyCorrection(wallet, playerUUID, correction.amount());
+            double newBalance = economy.getBalance(player);
+            if (plugin.getConfigManager().isLogBalanceActions()) {
+                plugin.getLogger().info("Applied external DB change for " +
+                        player.getName() + ": " + newBalance);
+            }
 
-                    if (plugin.getConfigManager().notifyOnExternalChange()) {
-                        String message = plugin.getTranslationManager().getMessage("balance-external-change");
-                        if (message != null && !message.isEmpty()) {
-                            String formatted = message
-                                    .replace("{old}", String.format("%.2f", oldBalance != null ? oldBalance : currentBalance))
-                                    .replace("{new}", String.format("%.2f", newBalance))
-                                    .replace("&", "§");
-                            String finalMessage = plugin.getTranslationManager().formatMessage("prefix") + formatted;
-                            if ("actionbar".equalsIgnoreCase(plugin.getConfigManager().getMessageDisplay())) {
-                                player.sendActionBar(finalMessage);
-                            } else {
-                                player.sendMessage(finalMessage);
-                            }
-                        }
+            if (plugin.getConfigManager().notifyOnExternalChange()) {
+                String message = plugin.getTranslationManager().getMessage("balance-external-change");
+                if (message != null && !message.isEmpty()) {
+                    String formatted = message
+                            .replace("{old}", String.format("%.2f", oldBalance))
+                            .replace("{new}", String.format("%.2f", newBalance))
+                            .replace("&", "§");
+                    String finalMessage = plugin.getTranslationManager().formatMessage("prefix") + formatted;
+                    if ("actionbar".equalsIgnoreCase(plugin.getConfigManager().getMessageDisplay())) {
+                        player.sendActionBar(finalMessage);
+                    } else {
+                        player.sendMessage(finalMessage);
                     }
                 }
-            });
+            }
         }
     }
 
+    public OfflineBalanceScanner getOfflineScanner() {
+        return offlineScanner;
+    }
+
+    public BalanceApplier getBalanceApplier() {
+        return balanceApplier;
+    }
+
     // Monitor offline player balance changes when auto-save-interval = 0
     private void startOfflineMonitoring() {
         int autoSaveInterval = plugin.getConfigManager().getAutoSaveInterval();
         boolean monitorOffline = plugin.getConfigManager().monitorOfflineChanges();
 
+        // Also with the economy wrapper: plugins that bypass it are only caught by this scan
         if (autoSaveInterval == 0 && monitorOffline) {
-            // Check for balance changes every 30 seconds
-            Bukkit.getScheduler().runTaskTimerAsynchronously(plugin, () -> {
-                monitorOfflineBalanceChanges();
-            }, 600L, 600L); // 30 seconds (600 ticks)
-
-            plugin.getLogger().info("Started offline balance change monitoring");
-        }
-    }
-
-    // Detect and save offline balance changes
-    private void monitorOfflineBalanceChanges() {
-        for (OfflinePlayer offlinePlayer : Bukkit.getOfflinePlayers()) {
-            if (economy.hasAccount(offlinePlayer)) {
-                double currentBalance = economy.getBalance(offlinePlayer);
-                UUID uuid = offlinePlayer.getUniqueId();
-
-                Double lastBalance = lastKnownBalances.get(uuid);
-                if (lastBalance != null && Math.abs(currentBalance - lastBalance) > 0.001) {
-                    // Balance has changed on this server. Instead of overwriting the DB with
-                    // a stale server value, compute the delta and apply that to the DB.
-                    double delta = currentBalance - lastBalance;
-                    try {
-                        databaseManager.addBalanceDelta(uuid, offlinePlayer.getName(), delta);
-
-                        // Refresh DB snapshot for tracking
-                        double newDbBalance = databaseManager.getBalance(uuid);
-
-                        lastKnownBalances.put(uuid, currentBalance);
-                        lastKnownDbBalances.put(uuid, newDbBalance);
-
-                        if (plugin.getConfigManager().isLogBalanceActions()) {
-                            plugin.getLogger().info("Detected offline change for " +
-                                    offlinePlayer.getName() + ": serverDelta=" + delta + ", newDB=" + newDbBalance);
-                        }
-
-                        // Optional: send configured offline-change message to console/log
-                        String msg = plugin.getTranslationManager().getMessage("offline-change-detected");
-                        if (msg != null && !msg.isEmpty() && plugin.getConfigManager().isLogBalanceActions()) {
-                            plugin.getLogger().info(plugin.getTranslationManager().formatMessage("prefix") + msg);
-                        }
-                    } catch (SQLException e) {
-                        plugin.getPluginLogger().log(Level.WARNING,
-                                "Failed to save offline change for " + offlinePlayer.getName(), e);
-                    }
-                } else if (lastBalance == null) {
-                    // First time seeing this player on this server, store initial balance
-                    lastKnownBalances.put(uuid, currentBalance);
+            // A slice of the known players every tick, all of them once per offline-scan.period
+            offlineScanner = new OfflineBalanceScanner(plugin, this::checkOfflineBalance);
+
+            plugin.getLogger().info("Started offline balance change monitoring (full pass every " +
+                    plugin.getConfigManager().getOfflineScanPeriod() + " seconds)");
+        }
+    }
+
+    // Detect and save an offline balance change, called by the OfflineBalanceScanner
+    private void checkOfflineBalance(OfflinePlayer offlinePlayer) {
+        if (economy.hasAccount(offlinePlayer)) {
+            UUID uuid = offlinePlayer.getUniqueId();
+
+            double delta = sync.queueBalanceChange(uuid, offlinePlayer.getName(), () -> economy.getBalance(offlinePlayer));
+            if (!Double.isNaN(delta) && Math.abs(delta) > 0.001) {
+                // Balance has changed on this server. Instead of overwriting the DB with
+                // a stale server value, the delta is queued and applied to the DB.
+                if (plugin.getConfigManager().isLogBalanceActions()) {
+                    plugin.getLogger().info("Detected offline change for " +
+                            offlinePlayer.getName() + ": serverDelta=" + delta);
+                }
+
+                // Optional: send configured offline-change message to console/log
+                String msg = plugin.getTranslationManager().getMessage("offline-change-detected");
+                if (msg != null && !msg.isEmpty() && plugin.getConfigManager().isLogBalanceActions()) {
+                    plugin.getLogger().info(plugin.getTranslationManager().formatMessage("prefix") + msg);
                 }
             }
         }
@@ -286,56 +730,192 @@ public class BalanceManager {
 
     // Track balance when player quits
     public void trackPlayerQuit(UUID playerUUID, double balance) {
-        lastKnownBalances.put(playerUUID, balance);
+        tracker.setServerBalance(playerUUID, balance);
     }
 
-    // Helper method
-    private List<UUID> getOnlinePlayerUUIDs() {
-        List<UUID> uuids = new ArrayList<>();
-        for (Player player : Bukkit.getOnlinePlayers()) {
-            uuids.add(player.getUniqueId());
+    // MODIFIED savePlayerBalance to update tracking
+    public void savePlayerBalance(OfflinePlayer player) {
+        UUID uuid = player.getUniqueId();
+
+        // There is a last-known server-side snapshot => the delta goes to the writer
+        if (!Double.isNaN(sync.queueBalanceChange(uuid, player.getName(), () -> economy.getBalance(player)))) {
+            return;
         }
-        return uuids;
+
+        // No snapshot (never loaded or evicted): there is nothing to compute a delta against
+        databaseManager.getExecutor().execute(() -> adoptDbBalances(List.of(uuid)));
     }
 
-    // MODIFIED savePlayerBalance to update tracking
-    public void savePlayerBalance(OfflinePlayer player) {
-        Bukkit.getScheduler().runTaskAsynchronously(plugin, () -> {
-            try {
-                double balance = economy.getBalance(player);
-                UUID uuid = player.getUniqueId();
-
-                Double lastBalance = lastKnownBalances.get(uuid);
-                if (lastBalance != null) {
-                    // There is a last-known server-side snapshot => compute delta and apply it
-                    double delta = balance - lastBalance;
-                    if (Math.abs(delta) > 0.001) {
-                        databaseManager.addBalanceDelta(uuid, player.getName(), delta);
-
-                        double newDb = databaseManager.getBalance(uuid);
-                        lastKnownBalances.put(uuid, balance);
-                        lastKnownDbBalances.put(uuid, newDb);
-                        return;
-                    }
+    /**
+     * Start tracking players who had no server-side snapshot. queueBalanceChange already took
+     * their current balance as the snapshot; the database balance becomes the database snapshot
+     * and nothing is written. Without a known earlier balance the difference between the two
+     * could only be written as an overwrite, which would undo changes other servers made in the
+     * meantime. From here on only changes against the new snapshot are queued. Runs on the
+     * database executor.
+     */
+    private void adoptDbBalances(List<UUID> playerUUIDs) {
+        if (playerUUIDs.isEmpty()) {
+            return;
+        }
+        try {
+            long readStartedAt = System.currentTimeMillis();
+            Map<UUID, Double> balances = databaseManager.getBalances(playerUUIDs);
+            for (UUID uuid : playerUUIDs) {
+                // Unless the writer has a newer one, for a transaction recorded in the meantime
+                if (!deltaWriteQueue.isInFlight(uuid)) {
+                    tracker.swapDbBalance(uuid, balances.get(uuid), readStartedAt);
                 }
+            }
+        } catch (SQLException e) {
+            // The server-side snapshots are set, the database snapshot follows with the next poll
+            plugin.getPluginLogger().log(Level.WARNING,
+                    "Failed to load the database balance of " + playerUUIDs.size() + " untracked players", e);
+        }
+    }
 
-                // Fallback: overwrite DB with current balance
-                databaseManager.saveBalance(player.getUniqueId(), player.getName(), balance);
-                lastKnownBalances.put(player.getUniqueId(), balance);
-                lastKnownDbBalances.put(player.getUniqueId(), balance);
-            } catch (SQLException e) {
-                plugin.getPluginLogger().log(Level.SEVERE,
-                        "Failed to save balance for player: " + player.getName(), e);
+    // Drop snapshots of offline players that have nothing left to write
+    private void evictIdleSnapshots() {
+        int removed = tracker.evict(plugin.getConfigManager().getTrackingMaxSize(),
+                plugin.getConfigManager().getTrackingExpireAfterAccess() * 1000L,
+                uuid -> Bukkit.getPlayer(uuid) != null || dirtyPlayers.contains(uuid)
+                        || deltaWriteQueue.hasPending(uuid));
+        if (removed > 0 && plugin.getConfigManager().isLogBalanceActions()) {
+            plugin.getPluginLogger().info("Evicted " + removed + " idle balance snapshots (" +
+                    tracker.size() + " tracked).");
+        }
+    }
+
+    // Fold the ledger on the database executor. Overlapping runs, here or on other servers, are
+    // skipped by the database lock.
+    private void compactLedger() {
+        if (!databaseManager.isAvailable()) {
+            return;
+        }
+        databaseManager.supplyAsync(databaseManager::compactLedger).whenComplete((folded, error) -> {
+            if (error != null) {
+                plugin.getPluginLogger().log(Level.WARNING, "Ledger compaction failed", error);
+            } else if (folded >= 0) {
+                lastCompactedRows = folded;
             }
         });
     }
 
+    public SharedBalanceCache getSharedCache() {
+        return sharedCache;
+    }
+
+    // null if polling is off
+    public AdaptivePollInterval getPollInterval() {
+        return pollInterval;
+    }
+
+    public ChangeNotifier getChangeNotifier() {
+        return changeNotifier;
+    }
+
+    public int getLastCompactedRows() {
+        return lastCompactedRows;
+    }
+
+    public JoinPrefetcher getJoinPrefetcher() {
+        return joinPrefetcher;
+    }
+
+    public BalanceTracker getTracker() {
+        return tracker;
+    }
+
     // Cleanup on disable
     public void shutdown() {
+        pollingStopped = true;
         if (dbPollingTask != null) {
             dbPollingTask.cancel();
         }
-        lastKnownBalances.clear();
-        lastKnownDbBalances.clear();
+        evictionTask.cancel();
+        if (compactionTask != null) {
+            compactionTask.cancel();
+        }
+        balanceApplier.shutdown();
+        loadBatcher.shutdown();
+        if (joinLoadBatcher != loadBatcher) {
+            joinLoadBatcher.shutdown();
+        }
+        if (offlineScanner != null) {
+            offlineScanner.shutdown();
+        }
+        // Write everything out before the connection pool is closed
+        flushOnShutdown();
+        if (changeNotifier != null) {
+            changeNotifier.close();
+        }
+        if (sharedCache != null) {
+            sharedCache.close();
+        }
+        tracker.clear();
+        dirtyPlayers.clear();
+        sync.getDeferred().clear();
+        joinPrefetcher.clear();
+    }
+
+    /**
+     * Final save on the disabling thread: the changes of the players marked dirty and of the
+     * online players are queued as deltas against their snapshots, then everything the writer
+     * still has goes out in one transaction. Players without a snapshot are skipped, there is no
+     * earlier balance to compute a delta against. Queued deltas are in the journal, so whatever
+     * doesn't make it before {@code settings.shutdown-flush.deadline-ms} is written on the next start.
+     */
+    private void flushOnShutdown() {
+        long start = System.nanoTime();
+        long deadline = start + plugin.getConfigManager().getShutdownFlushDeadline() * 1_000_000L;
+
+        deltaWriteQueue.stop(remainingMillis(deadline));
+
+        Set<UUID> candidates = new HashSet<>(dirtyPlayers);
+        for (Player player : Bukkit.getOnlinePlayers()) {
+            candidates.add(player.getUniqueId());
+        }
+        int checked = 0;
+        for (UUID uuid : candidates) {
+            if (System.nanoTime() >= deadline) {
+                break;
+            }
+            checked++;
+            OfflinePlayer player = Bukkit.getOfflinePlayer(uuid);
+            if (economy.hasAccount(player)) {
+                sync.queueBalanceChange(uuid, player.getName(), () -> economy.getBalance(player));
+            }
+        }
+
+        int pendingDeltas = deltaWriteQueue.getPendingCount();
+        // Without a journal the deltas only live in memory, so they are written even if late and
+        // a write the writer thread is still stuck in gets up to a connection timeout to finish
+        boolean deltasSaved;
+        if (deltaWriteQueue.isJournaled()) {
+            deltasSaved = System.nanoTime() < deadline && deltaWriteQueue.flushNow(remainingMillis(deadline));
+        } else {
+            deltasSaved = deltaWriteQueue.flushNow(Math.max(remainingMillis(deadline),
+                    plugin.getConfigManager().getConnectionTimeout()));
+        }
+        deltaWriteQueue.close();
+
+        long elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+        if (plugin.getConfigManager().isLogSaveAllMessages() && deltasSaved) {
+            plugin.getPluginLogger().info("Saved " + pendingDeltas + " balance changes to database in " +
+                    elapsedMillis + " ms on shutdown.");
+        }
+        if (!deltasSaved && pendingDeltas > 0) {
+            plugin.getPluginLogger().warning(pendingDeltas + " balance changes could not be saved in time, " +
+                    "they are kept in the journal and written on the next start.");
+        }
+        if (checked < candidates.size()) {
+            plugin.getPluginLogger().warning("Shutdown deadline reached, the balances of " +
+                    (candidates.size() - checked) +
+                    " changed players were not checked.");
+        }
+    }
+
+    private static long remainingMillis(long deadlineNanos) {
+        return Math.max(0, (deadlineNanos - System.nanoTime()) / 1_000_000);
     }
-}
\ No newline at end of file
+}
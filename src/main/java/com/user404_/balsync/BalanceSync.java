@@ -0,0 +1,252 @@
+package com.user404_.balsync;
+
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.DoubleSupplier;
+import java.util.function.LongSupplier;
+
+/**
+ * The sync rules between a server's economy and the database, without anything Bukkit: which
+ * changes become deltas for the writer, when a database balance differs from what this server
+ * knows, and how a correction or a loaded balance is applied. BalanceManager feeds it from the
+ * economy, the poll and the writer; the cluster simulation runs the same code against its own
+ * economies.
+ * <p>
+ * Changes made elsewhere are applied as the amount the database moved since the last known
+ * database balance, never by setting the economy to the database balance. Changes of this server
+ * that are still queued for the writer are not in the database yet, setting the balance would
+ * take them away locally and they would come back with the write. Reading the economy together
+ * with the snapshot swap and applying a correction together with the snapshot update happen under
+ * a per-player lock, so a save running next to a correction can't write the correction back.
+ * <p>
+ * A database balance is only used if it was read after the last one this server knows of, and not
+ * while a write for the player is in flight: that write may already be in the read, but not yet
+ * in the snapshot. Such players are reloaded with the next poll ({@link #getDeferred()}).
+ * <p>
+ * Economy access goes through a {@link Wallet} and must happen where the economy may be used
+ * (the main thread on Bukkit). Everything else is thread-safe.
+ */
+public class BalanceSync {
+    private static final int LOCK_STRIPES = 64;
+
+    private final BalanceTracker tracker;
+    private final Writer writer;
+    private final Corrections corrections;
+    // Wall clock for the time a write was committed by, replaceable in tests
+    private final LongSupplier clock;
+    private final ReentrantLock[] locks = new ReentrantLock[LOCK_STRIPES];
+    // Online players whose database balance has to be read again
+    private final Set<UUID> deferred = ConcurrentHashMap.newKeySet();
+
+    public BalanceSync(BalanceTracker tracker, Writer writer, Corrections corrections) {
+        this(tracker, writer, corrections, System::currentTimeMillis);
+    }
+
+    BalanceSync(BalanceTracker tracker, Writer writer, Corrections corrections, LongSupplier clock) {
+        this.tracker = tracker;
+        this.writer = writer;
+        this.corrections = corrections;
+        this.clock = clock;
+        for (int i = 0; i < locks.length; i++) {
+            // Not synchronized: this runs on virtual threads and the economy may block
+            locks[i] = new ReentrantLock();
+        }
+    }
+
+    public BalanceTracker getTracker() {
+        return tracker;
+    }
+
+    /** Players to reload from the database with the next poll. Live view, safe to modify. */
+    public Set<UUID> getDeferred() {
+        return deferred;
+    }
+
+    public void defer(UUID playerUUID) {
+        deferred.add(playerUUID);
+    }
+
+    /**
+     * Swap in the player's current balance as the new server-side snapshot and queue the
+     * difference to the previous one for the delta writer. Returns the queued delta, or NaN if
+     * there was no snapshot yet.
+     */
+    public double queueBalanceChange(UUID playerUUID, String playerName, DoubleSupplier balance) {
+        ReentrantLock lock = lockFor(playerUUID);
+        lock.lock();
+        try {
+            return swapAndQueue(playerUUID, playerName, balance.getAsDouble());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * A deposit or withdrawal of {@code amount} that was just made. Goes through the snapshot
+     * swap like any other change, so it isn't counted again by the next save cycle. For a player
+     * without a snapshot the amount itself is queued.
+     */
+    public void recordTransaction(UUID playerUUID, String playerName, DoubleSupplier balance, double amount) {
+        ReentrantLock lock = lockFor(playerUUID);
+        lock.lock();
+        try {
+            if (Double.isNaN(swapAndQueue(playerUUID, playerName, balance.getAsDouble()))) {
+                double rounded = BalanceTracker.roundToCents(amount);
+                if (Math.abs(rounded) > 0.001) {
+                    writer.enqueue(playerUUID, playerName, rounded);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Called by the delta writer once a player's delta has been committed, leaving the row at
+     * {@code version} (0 if unknown). If the new balance moved by more than the delta, other
+     * servers changed it as well and the difference is handed to {@link Corrections}.
+     */
+    public void onDeltaWritten(UUID playerUUID, double delta, double newDbBalance, long version) {
+        // Every read that starts after now sees this write
+        double lastDbBalance = tracker.swapWrittenDbBalance(playerUUID, newDbBalance, clock.getAsLong(), version);
+        if (Double.isNaN(lastDbBalance)) {
+            return;
+        }
+        double external = BalanceTracker.roundToCents(newDbBalance - lastDbBalance - delta);
+        if (Math.abs(external) > 0.001) {
+            corrections.correct(playerUUID, external, newDbBalance);
+        }
+    }
+
+    /**
+     * A balance read from the database, {@code readStartedAt} is the wall clock time before the
+     * read was sent. A change to the last known database balance is handed to
+     * {@link Corrections}. Returns true if there was one.
+     */
+    public boolean handleDbBalance(UUID playerUUID, double dbBalance, long readStartedAt) {
+        return handleDbBalance(playerUUID, dbBalance, readStartedAt, 0);
+    }
+
+    /** Like {@link #handleDbBalance(UUID, double, long)} for a balance read at row {@code version}. */
+    public boolean handleDbBalance(UUID playerUUID, double dbBalance, long readStartedAt, long version) {
+        if (writer.isInFlight(playerUUID)) {
+            // The write may be in the read but not in the snapshot yet, read again afterwards
+            deferred.add(playerUUID);
+            return false;
+        }
+        // Swapped atomically, the poll and a notification can report the same player at once
+        double lastDbBalance = tracker.swapDbBalance(playerUUID, dbBalance, readStartedAt, version);
+        if (lastDbBalance == BalanceTracker.STALE) {
+            // A newer read or a write of ours got there first
+            return false;
+        }
+        if (Double.isNaN(lastDbBalance)) {
+            // Never loaded, there is nothing to compare with. It's the reference from now on.
+            return false;
+        }
+        double change = BalanceTracker.roundToCents(dbBalance - lastDbBalance);
+        if (Math.abs(change) > 0.001) {
+            corrections.correct(playerUUID, change, dbBalance);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * True if this server already used a database balance of the player at row {@code version}
+     * or later, so a notification about that version brings nothing new. Always false for
+     * version 0 (unknown).
+     */
+    public boolean hasSeenVersion(UUID playerUUID, long version) {
+        return version > 0 && tracker.getDbVersion(playerUUID) >= version;
+    }
+
+    /**
+     * Apply an amount handed to {@link Corrections} to the player's economy balance and the
+     * server-side snapshot, so it isn't queued again as a change of this server.
+     */
+    public void applyCorrection(Wallet wallet, UUID playerUUID, double amount) {
+        ReentrantLock lock = lockFor(playerUUID);
+        lock.lock();
+        try {
+            wallet.add(playerUUID, amount);
+            tracker.addServerBalance(playerUUID, amount);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Overwrite the player's economy balance with one loaded on join (read started at
+     * {@code readStartedAt}), after setting it to 0 first if {@code reset} is set. Nothing is
+     * changed and false returned while this server has deltas for the player that aren't in the
+     * database yet, or if it saw a newer database balance since the read started; load again then.
+     */
+    public boolean applyLoadedBalance(Wallet wallet, UUID playerUUID, double databaseBalance,
+                                      long readStartedAt, boolean reset) {
+        ReentrantLock lock = lockFor(playerUUID);
+        lock.lock();
+        try {
+            // Deltas are only queued under this lock, so none can slip in until the overwrite is done
+            if (writer.hasPending(playerUUID) || !tracker.setBoth(playerUUID, databaseBalance, readStartedAt)) {
+                return false;
+            }
+            if (reset) {
+                wallet.add(playerUUID, -wallet.getBalance(playerUUID));
+            }
+            double difference = databaseBalance - wallet.getBalance(playerUUID);
+            if (difference != 0) {
+                wallet.add(playerUUID, difference);
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Needs the player's lock
+    private double swapAndQueue(UUID playerUUID, String playerName, double balance) {
+        balance = BalanceTracker.roundToCents(balance);
+        double previous = tracker.swapServerBalance(playerUUID, balance);
+        if (Double.isNaN(previous)) {
+            return Double.NaN;
+        }
+        double delta = balance - previous;
+        if (Math.abs(delta) > 0.001) {
+            writer.enqueue(playerUUID, playerName, delta);
+        }
+        return delta;
+    }
+
+    private ReentrantLock lockFor(UUID playerUUID) {
+        long hash = BalanceTracker.hash(playerUUID.getMostSignificantBits(), playerUUID.getLeastSignificantBits());
+        return locks[(int) (hash & (LOCK_STRIPES - 1))];
+    }
+
+    /** Where deltas go, the {@link DeltaWriteQueue}. */
+    public interface Writer {
+        void enqueue(UUID playerUUID, String playerName, double delta);
+
+        // True while a delta for the player is queued or being written
+        boolean hasPending(UUID playerUUID);
+
+        // True while a delta for the player is being written
+        boolean isInFlight(UUID playerUUID);
+    }
+
+    /** Receives database changes an online player has to be brought up to date with. Called from any thread. */
+    public interface Corrections {
+        // amount: how far the database balance moved without this server, newDbBalance: where it is now
+        void correct(UUID playerUUID, double amount, double newDbBalance);
+    }
+
+    /** A server's economy. */
+    public interface Wallet {
+        double getBalance(UUID playerUUID);
+
+        // Deposit a positive amount, withdraw a negative one
+        void add(UUID playerUUID, double amount);
+    }
+}
@@ -0,0 +1,523 @@
+package com.user404_.balsync;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+import java.util.UUID;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.LongSupplier;
+import java.util.function.Predicate;
+
+/**
+ * Last known balances per player: the server-side snapshot (what the economy had when we last
+ * looked) and the database snapshot (what the database had when we last read or wrote it).
+ * <p>
+ * Replaces two {@code ConcurrentHashMap<UUID, Double>}. Entries live in open-addressed tables of
+ * primitive longs, seven per slot: the two halves of the UUID, both balances in cents, the time
+ * of the last access, the time the database snapshot was observed and the highest row version
+ * seen. Updating an existing player allocates nothing. The tables are split into segments with
+ * their own {@link StampedLock}; reads are optimistic and only fall back to the read lock when a
+ * writer got in between. 100k players take 7-14 MB, depending on how far the tables have grown.
+ * <p>
+ * The tracker is bounded by {@link #evict}, which drops entries that weren't accessed for a while
+ * and then the least recently accessed ones until the size limit is met.
+ */
+public class BalanceTracker {
+    // Marks a balance that was never set. An entry with both balances unset is an empty slot.
+    private static final long NONE = Long.MIN_VALUE;
+    /** Returned by {@link #swapDbBalance(UUID, double, long)} for a balance older than the snapshot. */
+    public static final double STALE = Double.NEGATIVE_INFINITY;
+    // Longs per slot: msb, lsb, server cents, db cents, last access millis, db observed millis,
+    // db row version (0 = unknown)
+    private static final int STRIDE = 7;
+    private static final int SEGMENT_BITS = 5;
+    private static final int INITIAL_SLOTS = 64;
+    // Reads only refresh access times older than this, so most of them take no lock at all
+    private static final long TOUCH_INTERVAL_MILLIS = 1000;
+    // Access times are written by readers holding the shared read lock, so they need atomic stores
+    private static final VarHandle LONGS = MethodHandles.arrayElementVarHandle(long[].class);
+
+    private final Segment[] segments = new Segment[1 << SEGMENT_BITS];
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder expiredEvictions = new LongAdder();
+    private final LongAdder sizeEvictions = new LongAdder();
+
+    // Wall clock for access times, replaceable in tests
+    private final LongSupplier clock;
+
+    public BalanceTracker() {
+        this(System::currentTimeMillis);
+    }
+
+    BalanceTracker(LongSupplier clock) {
+        this.clock = clock;
+        for (int i = 0; i < segments.length; i++) {
+            segments[i] = new Segment();
+        }
+    }
+
+    // Balances are tracked in cents, like the DECIMAL(15, 2) column
+    public static double roundToCents(double balance) {
+        return Math.round(balance * 100) / 100.0;
+    }
+
+    /** Server-side snapshot, or NaN if the player isn't tracked. */
+    public double getServerBalance(UUID playerUUID) {
+        return get(playerUUID, 2);
+    }
+
+    /** Database snapshot, or NaN if it isn't known. */
+    public double getDbBalance(UUID playerUUID) {
+        return get(playerUUID, 3);
+    }
+
+    /**
+     * Highest row version a used database snapshot had, 0 if none is known. Doesn't count as an
+     * access.
+     */
+    public long getDbVersion(UUID playerUUID) {
+        long msb = playerUUID.getMostSignificantBits();
+        long lsb = playerUUID.getLeastSignificantBits();
+        Segment segment = segmentFor(msb, lsb);
+
+        long stamp = segment.lock.tryOptimisticRead();
+        long[] t = segment.table;
+        int slot = Segment.find(t, msb, lsb);
+        long version = slot < 0 ? 0 : t[slot + 6];
+        if (!segment.lock.validate(stamp)) {
+            stamp = segment.lock.readLock();
+            try {
+                t = segment.table;
+                slot = Segment.find(t, msb, lsb);
+                version = slot < 0 ? 0 : t[slot + 6];
+            } finally {
+                segment.lock.unlockRead(stamp);
+            }
+        }
+        return version;
+    }
+
+    public void setServerBalance(UUID playerUUID, double balance) {
+        swap(playerUUID, 2, balance);
+    }
+
+    public void setDbBalance(UUID playerUUID, double balance) {
+        swap(playerUUID, 3, balance);
+    }
+
+    /** Set both snapshots, without a time the database balance was observed at. */
+    public void setBoth(UUID playerUUID, double balance) {
+        setBoth(playerUUID, balance, NONE);
+    }
+
+    /**
+     * Set both snapshots, e.g. after the balance was loaded from or written to the database. With
+     * {@code observedAt} (the time the read started, see {@link #swapDbBalance(UUID, double, long)}) nothing
+     * is changed and false returned if the database snapshot was observed at or after that.
+     */
+    public boolean setBoth(UUID playerUUID, double balance, long observedAt) {
+        long msb = playerUUID.getMostSignificantBits();
+        long lsb = playerUUID.getLeastSignificantBits();
+        long cents = toCents(balance);
+        Segment segment = segmentFor(msb, lsb);
+        long stamp = segment.lock.writeLock();
+        try {
+            int slot = segment.findOrInsert(msb, lsb);
+            if (observedAt != NONE && segment.table[slot + 5] >= observedAt) {
+                return false;
+            }
+            segment.table[slot + 2] = cents;
+            segment.table[slot + 3] = cents;
+            segment.table[slot + 4] = clock.getAsLong();
+            segment.table[slot + 5] = observedAt;
+            return true;
+        } finally {
+            segment.lock.unlockWrite(stamp);
+        }
+    }
+
+    /** Atomically replace the server-side snapshot and return the previous one (NaN if none). */
+    public double swapServerBalance(UUID playerUUID, double balance) {
+        return swap(playerUUID, 2, balance);
+    }
+
+    /** Atomically replace the database snapshot and return the previous one (NaN if none). */
+    public double swapDbBalance(UUID playerUUID, double balance) {
+        return swap(playerUUID, 3, balance);
+    }
+
+    /**
+     * Like {@link #swapDbBalance(UUID, double)} for a balance read from the database, the read
+     * started at {@code observedAt} (wall clock millis). Returns {@link #STALE} and changes nothing
+     * if the current snapshot was observed at or after that time, so an older read can't replace
+     * what a newer one or a write showed.
+     */
+    public double swapDbBalance(UUID playerUUID, double balance, long observedAt) {
+        return swapDbBalance(playerUUID, balance, observedAt, 0);
+    }
+
+    /**
+     * Like {@link #swapDbBalance(UUID, double, long)}, the balance was read at row
+     * {@code version} (0 if unknown). The version is only kept if the balance is used.
+     */
+    public double swapDbBalance(UUID playerUUID, double balance, long observedAt, long version) {
+        return swapObserved(playerUUID, balance, observedAt, version, false);
+    }
+
+    /**
+     * Like {@link #swapDbBalance(UUID, double)} for the balance a write of this server left,
+     * {@code committedBy} is a time after the commit. Always replaces the snapshot: reads are
+     * not used while a write is running, so whatever was read before is older.
+     */
+    public double swapWrittenDbBalance(UUID playerUUID, double balance, long committedBy, long version) {
+        return swapObserved(playerUUID, balance, committedBy, version, true);
+    }
+
+    private double swapObserved(UUID playerUUID, double balance, long observedAt, long version, boolean written) {
+        long msb = playerUUID.getMostSignificantBits();
+        long lsb = playerUUID.getLeastSignificantBits();
+        Segment segment = segmentFor(msb, lsb);
+        long stamp = segment.lock.writeLock();
+        try {
+            int slot = segment.findOrInsert(msb, lsb);
+            long[] t = segment.table;
+            if (t[slot + 5] >= observedAt) {
+                if (!written) {
+                    // findOrInsert may have added the entry, but then nothing was observed yet
+                    return STALE;
+                }
+                observedAt = t[slot + 5];
+            }
+            long previous = t[slot + 3];
+            t[slot + 3] = toCents(balance);
+            t[slot + 4] = clock.getAsLong();
+            t[slot + 5] = observedAt;
+            t[slot + 6] = Math.max(t[slot + 6], version);
+            return previous == NONE ? Double.NaN : previous / 100.0;
+        } finally {
+            segment.lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Add an amount to the server-side snapshot, e.g. when a database change was applied to the
+     * economy. Returns the new snapshot, or NaN (and changes nothing) if there is none.
+     */
+    public double addServerBalance(UUID playerUUID, double amount) {
+        long msb = playerUUID.getMostSignificantBits();
+        long lsb = playerUUID.getLeastSignificantBits();
+        Segment segment = segmentFor(msb, lsb);
+        long stamp = segment.lock.writeLock();
+        try {
+            long[] t = segment.table;
+            int slot = Segment.find(t, msb, lsb);
+            if (slot < 0 || t[slot + 2] == NONE) {
+                return Double.NaN;
+            }
+            t[slot + 2] += toCents(amount);
+            t[slot + 4] = clock.getAsLong();
+            return t[slot + 2] / 100.0;
+        } finally {
+            segment.lock.unlockWrite(stamp);
+        }
+    }
+
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            long stamp = segment.lock.readLock();
+            try {
+                size += segment.size;
+            } finally {
+                segment.lock.unlockRead(stamp);
+            }
+        }
+        return size;
+    }
+
+    public void clear() {
+        for (Segment segment : segments) {
+            long stamp = segment.lock.writeLock();
+            try {
+                segment.table = Segment.newTable(INITIAL_SLOTS);
+                segment.size = 0;
+            } finally {
+                segment.lock.unlockWrite(stamp);
+            }
+        }
+    }
+
+    /**
+     * Drop entries that weren't read or written for {@code expireAfterMillis}, then the least
+     * recently accessed ones until at most {@code maxSize} are left. Entries for which
+     * {@code pinned} returns true (online players, unsaved changes) are always kept, so the limit
+     * can be exceeded while they are. Returns the number of removed entries.
+     */
+    public int evict(int maxSize, long expireAfterMillis, Predicate<UUID> pinned) {
+        long expireBefore = clock.getAsLong() - expireAfterMillis;
+        int expired = removeAccessedBefore(expireBefore, pinned);
+        expiredEvictions.add(expired);
+
+        int size = size();
+        if (size <= maxSize) {
+            return expired;
+        }
+
+        // Approximate LRU: find the access time below which enough entries are older
+        long[] accessTimes = new long[size];
+        int count = 0;
+        for (Segment segment : segments) {
+            long stamp = segment.lock.readLock();
+            try {
+                long[] t = segment.table;
+                for (int slot = 0; slot < t.length && count < accessTimes.length; slot += STRIDE) {
+                    if (!Segment.isEmpty(t, slot)) {
+                        accessTimes[count++] = (long) LONGS.getOpaque(t, slot + 4);
+                    }
+                }
+            } finally {
+                segment.lock.unlockRead(stamp);
+            }
+        }
+        Arrays.sort(accessTimes, 0, count);
+        long cutoff = accessTimes[Math.max(0, Math.min(count, size - maxSize) - 1)] + 1;
+        int removed = removeAccessedBefore(cutoff, pinned);
+        sizeEvictions.add(removed);
+        return expired + removed;
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getExpiredEvictions() {
+        return expiredEvictions.sum();
+    }
+
+    public long getSizeEvictions() {
+        return sizeEvictions.sum();
+    }
+
+    private int removeAccessedBefore(long before, Predicate<UUID> pinned) {
+        int removed = 0;
+        for (Segment segment : segments) {
+            long stamp = segment.lock.writeLock();
+            try {
+                long[] t = segment.table;
+                int slot = 0;
+                while (slot < t.length) {
+                    if (!Segment.isEmpty(t, slot) && t[slot + 4] < before
+                            && !pinned.test(new UUID(t[slot], t[slot + 1]))) {
+                        // The slot is refilled by the backward shift, so look at it again
+                        segment.remove(slot);
+                        removed++;
+                    } else {
+                        slot += STRIDE;
+                    }
+                }
+            } finally {
+                segment.lock.unlockWrite(stamp);
+            }
+        }
+        return removed;
+    }
+
+    private double get(UUID playerUUID, int field) {
+        long msb = playerUUID.getMostSignificantBits();
+        long lsb = playerUUID.getLeastSignificantBits();
+        Segment segment = segmentFor(msb, lsb);
+
+        long stamp = segment.lock.tryOptimisticRead();
+        long[] t = segment.table;
+        int slot = Segment.find(t, msb, lsb);
+        long cents = slot < 0 ? NONE : t[slot + field];
+        if (!segment.lock.validate(stamp)) {
+            stamp = segment.lock.readLock();
+            try {
+                t = segment.table;
+                slot = Segment.find(t, msb, lsb);
+                cents = slot < 0 ? NONE : t[slot + field];
+            } finally {
+                segment.lock.unlockRead(stamp);
+            }
+        }
+
+        if (slot < 0) {
+            misses.increment();
+            return Double.NaN;
+        }
+        touch(segment, msb, lsb, t, slot);
+        hits.increment();
+        return cents == NONE ? Double.NaN : cents / 100.0;
+    }
+
+    // Refresh a read entry's access time. Under the read lock, so no writer moves the slot while
+    // it is stored; concurrent readers may race, which only makes the entry look a little older.
+    private void touch(Segment segment, long msb, long lsb, long[] seen, int seenSlot) {
+        long now = clock.getAsLong();
+        // Possibly a stale table from the optimistic read, good enough to skip fresh entries
+        if (now - (long) LONGS.getOpaque(seen, seenSlot + 4) < TOUCH_INTERVAL_MILLIS) {
+            return;
+        }
+        long stamp = segment.lock.readLock();
+        try {
+            long[] t = segment.table;
+            int slot = Segment.find(t, msb, lsb);
+            if (slot >= 0) {
+                LONGS.setOpaque(t, slot + 4, now);
+            }
+        } finally {
+            segment.lock.unlockRead(stamp);
+        }
+    }
+
+    private double swap(UUID playerUUID, int field, double balance) {
+        long msb = playerUUID.getMostSignificantBits();
+        long lsb = playerUUID.getLeastSignificantBits();
+        Segment segment = segmentFor(msb, lsb);
+        long stamp = segment.lock.writeLock();
+        try {
+            int slot = segment.findOrInsert(msb, lsb);
+            long previous = segment.table[slot + field];
+            segment.table[slot + field] = toCents(balance);
+            segment.table[slot + 4] = clock.getAsLong();
+            return previous == NONE ? Double.NaN : previous / 100.0;
+        } finally {
+            segment.lock.unlockWrite(stamp);
+        }
+    }
+
+    private Segment segmentFor(long msb, long lsb) {
+        return segments[(int) (hash(msb, lsb) >>> (64 - SEGMENT_BITS))];
+    }
+
+    private static long toCents(double balance) {
+        return Math.round(balance * 100);
+    }
+
+    // Murmur3 finalizer, spreads the UUID bits over the whole long
+    static long hash(long msb, long lsb) {
+        long h = msb * 31 + lsb;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private static final class Segment {
+        final StampedLock lock = new StampedLock();
+        long[] table = newTable(INITIAL_SLOTS);
+        int size;
+
+        static long[] newTable(int slots) {
+            long[] table = new long[slots * STRIDE];
+            for (int i = 0; i < table.length; i += STRIDE) {
+                table[i + 2] = NONE;
+                table[i + 3] = NONE;
+            }
+            return table;
+        }
+
+        static boolean isEmpty(long[] t, int slot) {
+            return t[slot + 2] == NONE && t[slot + 3] == NONE;
+        }
+
+        static int home(long[] t, long msb, long lsb) {
+            return (int) (hash(msb, lsb) & (t.length / STRIDE - 1));
+        }
+
+        // May run without a lock (optimistic read), so it only works on the given table and gives
+        // up after one lap around it. Returns the slot offset or -1.
+        static int find(long[] t, long msb, long lsb) {
+            int slots = t.length / STRIDE;
+            int index = home(t, msb, lsb);
+            for (int probes = 0; probes < slots; probes++) {
+                int slot = index * STRIDE;
+                if (isEmpty(t, slot)) {
+                    return -1;
+                }
+                if (t[slot] == msb && t[slot + 1] == lsb) {
+                    return slot;
+                }
+                index = (index + 1) & (slots - 1);
+            }
+            return -1;
+        }
+
+        // Needs the write lock. Returns the offset of the player's slot.
+        int findOrInsert(long msb, long lsb) {
+            int slots = table.length / STRIDE;
+            int index = home(table, msb, lsb);
+            while (true) {
+                int slot = index * STRIDE;
+                if (isEmpty(table, slot)) {
+                    if ((size + 1) * 4 > slots * 3) {
+                        // Keep the load factor below 0.75
+                        resize();
+                        return findOrInsert(msb, lsb);
+                    }
+                    table[slot] = msb;
+                    table[slot + 1] = lsb;
+                    table[slot + 5] = NONE;
+                    table[slot + 6] = 0;
+                    size++;
+                    return slot;
+                }
+                if (table[slot] == msb && table[slot + 1] == lsb) {
+                    return slot;
+                }
+                index = (index + 1) & (slots - 1);
+            }
+        }
+
+        // Needs the write lock. Backward-shift deletion, so no tombstones are left behind.
+        void remove(int slot) {
+            int slots = table.length / STRIDE;
+            int hole = slot / STRIDE;
+            int index = hole;
+            while (true) {
+                index = (index + 1) & (slots - 1);
+                int offset = index * STRIDE;
+                if (isEmpty(table, offset)) {
+                    break;
+                }
+                int home = home(table, table[offset], table[offset + 1]);
+                // Move the entry into the hole unless its home lies between the hole and itself
+                boolean between = hole <= index ? (hole < home && home <= index) : (hole < home || home <= index);
+                if (!between) {
+                    System.arraycopy(table, offset, table, hole * STRIDE, STRIDE);
+                    hole = index;
+                }
+            }
+            int offset = hole * STRIDE;
+            table[offset + 2] = NONE;
+            table[offset + 3] = NONE;
+            size--;
+        }
+
+        private void resize() {
+            long[] old = table;
+            long[] grown = newTable((old.length / STRIDE) * 2);
+            int mask = grown.length / STRIDE - 1;
+            for (int i = 0; i < old.length; i += STRIDE) {
+                if (isEmpty(old, i)) {
+                    continue;
+                }
+                int index = home(grown, old[i], old[i + 1]);
+                while (!isEmpty(grown, index * STRIDE)) {
+                    index = (index + 1) & mask;
+                }
+                System.arraycopy(old, i, grown, index * STRIDE, STRIDE);
+            }
+            table = grown;
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package com.user404_.balsync;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Tells the other servers which balances this server has just written, so they can reload those
+ * players right away instead of waiting for the next database poll. Notifications only say
+ * <i>which</i> players changed and the row version the write left; the balance itself is always
+ * read from the database, so a lost or forged notification costs at most one extra read. A
+ * receiver that already used that version or a later one skips the read. The poll stays on as a
+ * slower safety net ({@code settings.change-notify.poll-interval}).
+ * <p>
+ * The transport is picked with {@code settings.change-notify.transport}, see {@link #create}.
+ */
+public interface ChangeNotifier {
+
+    /** Start receiving notifications from the other servers. */
+    void start(Listener listener) throws IOException;
+
+    /**
+     * Announce that the balances of these players were written, with the row version per player
+     * (0 if unknown). Must not block on the network.
+     */
+    void publish(Map<UUID, Long> changed);
+
+    void close();
+
+    /** One line for /balsync status. */
+    String getStatus();
+
+    interface Listener {
+        // Called on the transport's thread. version: the row version of the write, 0 if unknown.
+        void onChanged(UUID playerUUID, long version);
+
+        // Notifications from a peer were lost, a poll should pick up what they carried
+        void onGap();
+    }
+
+    /** The configured transport, or null if notifications are disabled or misconfigured. */
+    static ChangeNotifier create(BalSyncPlugin plugin) {
+        ConfigManager config = plugin.getConfigManager();
+        if (!config.isChangeNotifyEnabled()) {
+            return null;
+        }
+        String transport = config.getChangeNotifyTransport();
+        if ("udp".equalsIgnoreCase(transport)) {
+            return new UdpPeerNotifier(plugin);
+        }
+        plugin.getPluginLogger().warning("Unknown change-notify transport '" + transport +
+                "', falling back to database polling only.");
+        return null;
+    }
+}
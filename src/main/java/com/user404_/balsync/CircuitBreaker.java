@@ -0,0 +1,135 @@
+package com.user404_.balsync;
+
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Circuit breaker for database calls. After {@code settings.circuit-breaker.failure-threshold}
+ * failed or slow calls in a row the breaker opens and calls fail right away, without taking a
+ * pooled connection, for {@code settings.circuit-breaker.open-duration} seconds. After that one
+ * call is let through as a probe: if it succeeds in time the breaker closes again, otherwise it
+ * stays open for another period.
+ */
+public class CircuitBreaker {
+    public enum State { CLOSED, OPEN, HALF_OPEN }
+
+    private final BalSyncPlugin plugin;
+    private final int failureThreshold;
+    private final long slowCallNanos;
+    private final long openNanos;
+
+    private volatile State state = State.CLOSED;
+    private volatile long openedAt;
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    private final AtomicBoolean probeRunning = new AtomicBoolean();
+    private final LongAdder trips = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+
+    public CircuitBreaker(BalSyncPlugin plugin) {
+        this.plugin = plugin;
+        this.failureThreshold = plugin.getConfigManager().getCircuitBreakerFailureThreshold();
+        this.slowCallNanos = plugin.getConfigManager().getCircuitBreakerSlowCallMillis() * 1_000_000L;
+        this.openNanos = plugin.getConfigManager().getCircuitBreakerOpenDuration() * 1_000_000_000L;
+    }
+
+    public <T> T call(SqlCall<T> call) throws SQLException {
+        boolean probe = acquire();
+        long start = System.nanoTime();
+        try {
+            T result = call.call();
+            if (System.nanoTime() - start > slowCallNanos) {
+                onFailure(probe);
+            } else {
+                onSuccess(probe);
+            }
+            return result;
+        } catch (SQLException | RuntimeException e) {
+            onFailure(probe);
+            throw e;
+        }
+    }
+
+    public void run(SqlRunnable call) throws SQLException {
+        call(() -> {
+            call.run();
+            return null;
+        });
+    }
+
+    /** False while open, i.e. while calls would be rejected. A due probe counts as available. */
+    public boolean isAvailable() {
+        return switch (state) {
+            case CLOSED -> true;
+            case OPEN -> System.nanoTime() - openedAt >= openNanos;
+            case HALF_OPEN -> !probeRunning.get();
+        };
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    public long getTrips() {
+        return trips.sum();
+    }
+
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    // Returns true if this call is the half-open probe
+    private boolean acquire() throws SQLException {
+        State current = state;
+        if (current == State.CLOSED) {
+            return false;
+        }
+        if (current == State.OPEN && System.nanoTime() - openedAt >= openNanos) {
+            state = State.HALF_OPEN;
+        }
+        if (state == State.HALF_OPEN && probeRunning.compareAndSet(false, true)) {
+            return true;
+        }
+        rejected.increment();
+        throw new SQLTransientConnectionException("Database circuit breaker is open");
+    }
+
+    private void onSuccess(boolean probe) {
+        consecutiveFailures.set(0);
+        if (probe) {
+            state = State.CLOSED;
+            probeRunning.set(false);
+            plugin.getPluginLogger().info("Database is responding again, circuit breaker closed.");
+        }
+    }
+
+    private void onFailure(boolean probe) {
+        if (probe) {
+            trip();
+            probeRunning.set(false);
+        } else if (consecutiveFailures.incrementAndGet() >= failureThreshold && state == State.CLOSED) {
+            trip();
+        }
+    }
+
+    private synchronized void trip() {
+        openedAt = System.nanoTime();
+        state = State.OPEN;
+        consecutiveFailures.set(0);
+        trips.increment();
+        plugin.getPluginLogger().warning("Database is failing or too slow, circuit breaker opened for " +
+                openNanos / 1_000_000_000L + " seconds. Balance changes are kept in the journal until it recovers.");
+    }
+
+    @FunctionalInterface
+    public interface SqlCall<T> {
+        T call() throws SQLException;
+    }
+
+    @FunctionalInterface
+    public interface SqlRunnable {
+        void run() throws SQLException;
+    }
+}
@@ -2,6 +2,7 @@ package com.user404_.balsync;
 
 import org.bukkit.configuration.file.FileConfiguration;
 import java.io.File;
+import java.util.List;
 
 public class ConfigManager {
     private final BalSyncPlugin plugin;
@@ -39,12 +40,53 @@ public class ConfigManager {
         config.addDefault("database.connection-pool.minimum-idle", 5);
         config.addDefault("database.connection-pool.connection-timeout", 30000);
         config.addDefault("database.connection-pool.idle-timeout", 600000);
+        config.addDefault("database.replica.enabled", false);
+        config.addDefault("database.replica.host", "");
+        config.addDefault("database.replica.port", 3306);
+        config.addDefault("database.replica.database", "");
+        config.addDefault("database.replica.username", "");
+        config.addDefault("database.replica.password", "");
+        config.addDefault("database.replica.maximum-pool-size", 5);
+        config.addDefault("database.replica.use-for-joins", false);
+        config.addDefault("database.replica.max-lag", 5);
 
         config.addDefault("settings.auto-save-interval", 60);
+        config.addDefault("settings.save-batch-size", 500);
+        config.addDefault("settings.write-behind.flush-interval", 1000);
+        config.addDefault("settings.write-behind.max-pending", 500);
         config.addDefault("settings.save-on-quit", true);
         config.addDefault("settings.starting-balance", 100.0);
         config.addDefault("settings.locale", "en");
 
+        config.addDefault("settings.offline-scan.period", 60);
+        config.addDefault("settings.db-poll-overlap", 5);
+        config.addDefault("settings.db-poll-max-interval", 60);
+        config.addDefault("settings.db-poll-jitter", 0.2);
+        config.addDefault("settings.apply-budget-us", 2000);
+        config.addDefault("settings.tracking.max-size", 100000);
+        config.addDefault("settings.economy-wrapper.enabled", false);
+        config.addDefault("settings.shared-cache.enabled", false);
+        config.addDefault("settings.shared-cache.file", "");
+        config.addDefault("settings.shared-cache.slots", 65536);
+        config.addDefault("settings.shared-cache.max-age", 10);
+        config.addDefault("settings.change-notify.enabled", false);
+        config.addDefault("settings.change-notify.transport", "udp");
+        config.addDefault("settings.change-notify.bind", "0.0.0.0:25590");
+        config.addDefault("settings.change-notify.peers", List.of());
+        config.addDefault("settings.change-notify.poll-interval", 60);
+        config.addDefault("settings.metrics.interval", 15);
+        config.addDefault("settings.join-prefetch.enabled", true);
+        config.addDefault("settings.load-batch.window-ms", 5);
+        config.addDefault("settings.shutdown-flush.deadline-ms", 10000);
+        config.addDefault("settings.server-id", "");
+        config.addDefault("settings.circuit-breaker.failure-threshold", 5);
+        config.addDefault("settings.circuit-breaker.slow-call-ms", 2000);
+        config.addDefault("settings.circuit-breaker.open-duration", 30);
+        config.addDefault("settings.journal.sync-interval-ms", 50);
+        config.addDefault("settings.journal.segment-size-mb", 4);
+        config.addDefault("settings.join-prefetch.ttl", 10);
+        config.addDefault("settings.tracking.expire-after-access", 3600);
+
         config.addDefault("settings.log-balance-actions", true);
         config.addDefault("settings.notify-player-on-sync", true);
         config.addDefault("settings.log-save-all-messages", true);
@@ -54,6 +96,9 @@ public class ConfigManager {
         config.addDefault("tables.player_balances.uuid-column", "player_uuid");
         config.addDefault("tables.player_balances.balance-column", "balance");
         config.addDefault("tables.player_balances.last-updated-column", "last_updated");
+        config.addDefault("tables.player_balances.compact-uuids", false);
+        config.addDefault("tables.player_balances.ledger.enabled", false);
+        config.addDefault("tables.player_balances.ledger.compact-interval", 10);
 
         config.options().copyDefaults(true);
         plugin.saveConfig();
@@ -105,11 +150,66 @@ public class ConfigManager {
         return config.getInt("database.connection-pool.idle-timeout", 600000);
     }
 
+    public boolean isReplicaEnabled() {
+        return config.getBoolean("database.replica.enabled", false);
+    }
+
+    // Empty values are taken from the primary
+    public String getReplicaHost() {
+        String host = config.getString("database.replica.host", "");
+        return host == null || host.isEmpty() ? getDatabaseHost() : host;
+    }
+
+    public int getReplicaPort() {
+        return config.getInt("database.replica.port", 3306);
+    }
+
+    public String getReplicaDatabaseName() {
+        String name = config.getString("database.replica.database", "");
+        return name == null || name.isEmpty() ? getDatabaseName() : name;
+    }
+
+    public String getReplicaUsername() {
+        String username = config.getString("database.replica.username", "");
+        return username == null || username.isEmpty() ? getDatabaseUsername() : username;
+    }
+
+    // Only taken from the primary together with the username
+    public String getReplicaPassword() {
+        String username = config.getString("database.replica.username", "");
+        return username == null || username.isEmpty() ? getDatabasePassword()
+                : config.getString("database.replica.password", "");
+    }
+
+    public int getReplicaPoolSize() {
+        return Math.max(1, config.getInt("database.replica.maximum-pool-size", 5));
+    }
+
+    public boolean isReplicaUsedForJoins() {
+        return config.getBoolean("database.replica.use-for-joins", false);
+    }
+
+    public int getReplicaMaxLag() {
+        return Math.max(1, config.getInt("database.replica.max-lag", 5));
+    }
+
     // Settings getters
     public int getAutoSaveInterval() {
         return config.getInt("settings.auto-save-interval", 60);
     }
 
+    public int getSaveBatchSize() {
+        return Math.max(1, config.getInt("settings.save-batch-size", 500));
+    }
+
+    public long getWriteBehindFlushInterval() {
+        return Math.max(50, config.getLong("settings.write-behind.flush-interval", 1000));
+    }
+
+    public int getWriteBehindMaxPending() {
+        return Math.max(1, config.getInt("settings.write-behind.max-pending", 500));
+    }
+
     public boolean saveOnQuit() {
         return config.getBoolean("settings.save-on-quit", true);
     }
@@ -139,6 +239,18 @@ public class ConfigManager {
     public String getTableName() {
         return config.getString("tables.player_balances.table-name", "player_balances");
     }
+    public boolean useCompactUuids() {
+        return config.getBoolean("tables.player_balances.compact-uuids", false);
+    }
+
+    public boolean isLedgerEnabled() {
+        return config.getBoolean("tables.player_balances.ledger.enabled", false);
+    }
+
+    public int getLedgerCompactInterval() {
+        return Math.max(1, config.getInt("tables.player_balances.ledger.compact-interval", 10));
+    }
+
     public boolean isResetOnJoin() {
         return config.getBoolean("settings.reset-on-join", false);
     }
@@ -147,10 +259,127 @@ public class ConfigManager {
         return config.getBoolean("settings.monitor-offline-changes", true);
     }
 
+    public boolean isEconomyWrapperEnabled() {
+        return config.getBoolean("settings.economy-wrapper.enabled", false);
+    }
+
+    public int getOfflineScanPeriod() {
+        return Math.max(1, config.getInt("settings.offline-scan.period", 60));
+    }
+
     public int getDbPollInterval() {
         return config.getInt("settings.db-poll-interval", 10);
     }
 
+    // Ceiling the poll interval grows to while nothing changes
+    public int getDbPollMaxInterval() {
+        return config.getInt("settings.db-poll-max-interval", 60);
+    }
+
+    public double getDbPollJitter() {
+        return config.getDouble("settings.db-poll-jitter", 0.2);
+    }
+
+    public boolean isSharedCacheEnabled() {
+        return config.getBoolean("settings.shared-cache.enabled", false);
+    }
+
+    // Empty = a file in the system temp folder named after the database and table
+    public String getSharedCacheFile() {
+        return config.getString("settings.shared-cache.file", "");
+    }
+
+    public int getSharedCacheSlots() {
+        return config.getInt("settings.shared-cache.slots", 65536);
+    }
+
+    public int getSharedCacheMaxAge() {
+        return Math.max(1, config.getInt("settings.shared-cache.max-age", 10));
+    }
+
+    public boolean isChangeNotifyEnabled() {
+        return config.getBoolean("settings.change-notify.enabled", false);
+    }
+
+    public String getChangeNotifyTransport() {
+        return config.getString("settings.change-notify.transport", "udp");
+    }
+
+    public String getChangeNotifyBind() {
+        return config.getString("settings.change-notify.bind", "0.0.0.0:25590");
+    }
+
+    public List<String> getChangeNotifyPeers() {
+        return config.getStringList("settings.change-notify.peers");
+    }
+
+    // Replaces db-poll-interval while notifications are on, 0 = no polling at all
+    public int getChangeNotifyPollInterval() {
+        return config.getInt("settings.change-notify.poll-interval", 60);
+    }
+
+    // Seconds between writes of plugins/BalSync/metrics.prom, 0 = never
+    public int getMetricsInterval() {
+        return config.getInt("settings.metrics.interval", 15);
+    }
+
+    public int getDbPollOverlap() {
+        return Math.max(1, config.getInt("settings.db-poll-overlap", 5));
+    }
+
+    public boolean isJoinPrefetchEnabled() {
+        return config.getBoolean("settings.join-prefetch.enabled", true);
+    }
+
+    public int getJoinPrefetchTtl() {
+        return Math.max(1, config.getInt("settings.join-prefetch.ttl", 10));
+    }
+
+    public int getLoadBatchWindow() {
+        return Math.max(0, config.getInt("settings.load-batch.window-ms", 5));
+    }
+
+    public int getShutdownFlushDeadline() {
+        return Math.max(0, config.getInt("settings.shutdown-flush.deadline-ms", 10000));
+    }
+
+    public String getServerId() {
+        return config.getString("settings.server-id", "").trim();
+    }
+
+    public int getCircuitBreakerFailureThreshold() {
+        return Math.max(1, config.getInt("settings.circuit-breaker.failure-threshold", 5));
+    }
+
+    public int getCircuitBreakerSlowCallMillis() {
+        return Math.max(1, config.getInt("settings.circuit-breaker.slow-call-ms", 2000));
+    }
+
+    public int getCircuitBreakerOpenDuration() {
+        return Math.max(1, config.getInt("settings.circuit-breaker.open-duration", 30));
+    }
+
+    public int getJournalSyncInterval() {
+        // 0 = fsync on every append
+        return Math.max(0, config.getInt("settings.journal.sync-interval-ms", 50));
+    }
+
+    public int getJournalSegmentSize() {
+        return Math.max(1, config.getInt("settings.journal.segment-size-mb", 4));
+    }
+
+    public int getTrackingMaxSize() {
+        return Math.max(1, config.getInt("settings.tracking.max-size", 100000));
+    }
+
+    public int getTrackingExpireAfterAccess() {
+        return Math.max(60, config.getInt("settings.tracking.expire-after-access", 3600));
+    }
+
+    public int getApplyBudgetMicros() {
+        return Math.max(1, config.getInt("settings.apply-budget-us", 2000));
+    }
+
     public boolean notifyOnExternalChange() {
         return config.getBoolean("settings.notify-on-external-change", true);
     }
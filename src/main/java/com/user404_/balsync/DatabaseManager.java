@@ -2,18 +2,71 @@ package com.user404_.balsync;
 
 import com.zaxxer.hikari.HikariConfig;
 import com.zaxxer.hikari.HikariDataSource;
+import com.zaxxer.hikari.metrics.IMetricsTracker;
+import com.zaxxer.hikari.metrics.PoolStats;
 import java.sql.*;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 
 public class DatabaseManager {
     private final BalSyncPlugin plugin;
     private HikariDataSource dataSource;
     private final String tableName;
+    // player_uuid is stored as BINARY(16) instead of CHAR(36), detected in setupTables() and
+    // switched on at runtime once another server migrated the table, see checkLayout()
+    private volatile boolean compactUuids;
+    // Values of the 'layout' row in <table>_meta
+    private static final String LAYOUT_LEGACY = "legacy";
+    private static final String LAYOUT_MIGRATING = "migrating";
+    private static final String LAYOUT_COMPACT = "compact";
+    // Legacy layout: calls check the layout row at most this often, writes always do
+    private static final long LAYOUT_CHECK_INTERVAL_MILLIS = 1000;
+    private volatile long layoutCheckedAt;
+    // Larger than any DECIMAL(15, 2) balance in cents, keeps LAST_INSERT_ID(expr) positive
+    private static final long RETURNED_BALANCE_OFFSET = 1_000_000_000_000_000L;
+    private static final int MIGRATION_CHUNK_SIZE = 5000;
+    // Upper bound for one compaction run, so a ledger that grows faster than it is folded
+    // doesn't keep a connection forever
+    private static final int MAX_COMPACTION_CHUNKS = 100;
+    // Balance changes go to <table>_ledger instead of the player's row, see compactLedger()
+    private final boolean ledgerEnabled;
+    // Wraps the reads and writes done while the server is running (not setup and migration)
+    private final CircuitBreaker breaker;
+    // Database work runs on virtual threads of its own instead of the shared Bukkit async pool.
+    // The semaphore keeps at most one operation per pooled connection in flight, every other
+    // caller parks cheaply instead of waiting inside Hikari. This needs a driver and pool that
+    // don't block inside synchronized (Connector/J 9, HikariCP 5.1), older versions pin the carrier
+    // thread for the whole query and cap the concurrency at the number of cores.
+    private final ExecutorService executor = Executors.newThreadPerTaskExecutor(
+            Thread.ofVirtual().name("BalSync-DB-", 0).factory());
+    private final Semaphore permits;
+    private final SyncMetrics metrics;
+    // Optional pool for the poll and join loads, see ReadReplica. Null if not configured.
+    private volatile ReadReplica replica;
 
     public DatabaseManager(BalSyncPlugin plugin) {
         this.plugin = plugin;
         this.tableName = plugin.getConfigManager().getTableName();
+        this.ledgerEnabled = plugin.getConfigManager().isLedgerEnabled();
+        this.breaker = new CircuitBreaker(plugin);
+        this.permits = new Semaphore(Math.max(1, plugin.getConfigManager().getMaxPoolSize()));
+        this.metrics = plugin.getSyncMetrics();
+        metrics.gauge("balsync_breaker_open", () -> breaker.getState() == CircuitBreaker.State.CLOSED ? 0 : 1);
+        metrics.gauge("balsync_breaker_trips", breaker::getTrips);
+        metrics.gauge("balsync_breaker_rejected", breaker::getRejected);
     }
 
     public boolean connect() {
@@ -27,6 +80,8 @@ public class DatabaseManager {
             config.setPassword(plugin.getConfigManager().getDatabasePassword());
             config.addDataSourceProperty("useSSL",
                     plugin.getConfigManager().useSSL());
+            // Let the driver collapse JDBC batches into multi-row INSERTs
+            config.addDataSourceProperty("rewriteBatchedStatements", true);
 
             // Connection pool settings
             config.setMaximumPoolSize(plugin.getConfigManager().getMaxPoolSize());
@@ -34,14 +89,18 @@ public class DatabaseManager {
             config.setConnectionTimeout(plugin.getConfigManager().getConnectionTimeout());
             config.setIdleTimeout(plugin.getConfigManager().getIdleTimeout());
             config.setLeakDetectionThreshold(30000);
+            config.setMetricsTrackerFactory((poolName, poolStats) -> new PoolMetrics(poolStats));
 
             dataSource = new HikariDataSource(config);
 
             // Test connection
             try (Connection conn = dataSource.getConnection()) {
                 plugin.getPluginLogger().info("Successfully connected to MySQL database!");
-                return true;
             }
+            if (plugin.getConfigManager().isReplicaEnabled()) {
+                replica = new ReadReplica(plugin);
+            }
+            return true;
         } catch (SQLException e) {
             plugin.getPluginLogger().log(Level.SEVERE, "Failed to connect to database!", e);
             return false;
@@ -49,6 +108,17 @@ public class DatabaseManager {
     }
 
     public void disconnect() {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(5, TimeUnit.SECONDS)) {
+                plugin.getPluginLogger().warning("Database tasks did not finish in time.");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (replica != null) {
+            replica.close();
+        }
         if (dataSource != null && !dataSource.isClosed()) {
             dataSource.close();
             plugin.getPluginLogger().info("Database connection closed.");
@@ -56,27 +126,395 @@ public class DatabaseManager {
     }
 
     public void setupTables() {
+        boolean wantCompact = plugin.getConfigManager().useCompactUuids();
+
+        try (Connection conn = dataSource.getConnection();
+             Statement stmt = conn.createStatement()) {
+            stmt.execute(wantCompact ? compactTableSQL(tableName) : legacyTableSQL(tableName));
+            stmt.execute(metaTableSQL(tableName + "_meta"));
+
+            // Use whatever layout the table actually has
+            compactUuids = hasCompactLayout(conn);
+            initLayout(conn);
+            if (!compactUuids) {
+                upgradeTable(conn);
+                if (wantCompact) {
+                    compactUuids = migrateToCompactLayout(conn);
+                }
+            }
+            stmt.execute(journalTableSQL(tableName + "_journal"));
+            if (ledgerEnabled) {
+                stmt.execute(ledgerTableSQL(tableName + "_ledger", compactUuids));
+            } else {
+                // Left over from ledger mode, the rows would not be read anymore
+                drainLedger(conn, true);
+            }
+            plugin.getPluginLogger().info("Database tables checked/created successfully!");
+            logTableInfo(conn);
+        } catch (SQLException e) {
+            plugin.getPluginLogger().log(Level.SEVERE, "Failed to create database tables!", e);
+            tryFallbackTableCreation();   // bleibt als Sicherheit
+        }
+
+        if (replica != null) {
+            try {
+                replica.start(dataSource);
+            } catch (SQLException e) {
+                plugin.getPluginLogger().log(Level.WARNING, "Failed to set up the replica heartbeat, " +
+                        "reading everything from the primary.", e);
+                replica.close();
+                replica = null;
+            }
+        }
+    }
+
+    private static String legacyTableSQL(String table) {
         // Kein DEFAULT-Wert mehr – wird beim Einfügen von der Anwendung gesetzt
-        String createTableSQL = String.format(
+        return String.format(
                 "CREATE TABLE IF NOT EXISTS `%s` (" +
                         "`id` INT AUTO_INCREMENT PRIMARY KEY, " +
                         "`player_uuid` CHAR(36) UNIQUE NOT NULL, " +
                         "`player_name` VARCHAR(16), " +
                         "`balance` DECIMAL(15, 2) NOT NULL, " +   // ← ohne DEFAULT
                         "`last_updated` TIMESTAMP DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP, " +
-                        "INDEX `idx_uuid` (`player_uuid`)" +
+                        "`version` BIGINT NOT NULL DEFAULT 0, " +
+                        "INDEX `idx_uuid` (`player_uuid`), " +
+                        "INDEX `idx_last_updated` (`last_updated`)" +
                         ") CHARACTER SET utf8mb4 COLLATE utf8mb4_unicode_ci ENGINE=InnoDB",
-                tableName
+                table
         );
+    }
 
-        try (Connection conn = dataSource.getConnection();
-             Statement stmt = conn.createStatement()) {
-            stmt.execute(createTableSQL);
-            plugin.getPluginLogger().info("Database tables checked/created successfully!");
-            logTableInfo(conn);
-        } catch (SQLException e) {
-            plugin.getPluginLogger().log(Level.SEVERE, "Failed to create database tables!", e);
-            tryFallbackTableCreation();   // bleibt als Sicherheit
+    // 16-byte UUID as clustered primary key, no surrogate id and no duplicate index
+    private static String compactTableSQL(String table) {
+        return String.format(
+                "CREATE TABLE IF NOT EXISTS `%s` (" +
+                        "`player_uuid` BINARY(16) NOT NULL PRIMARY KEY, " +
+                        "`player_name` VARCHAR(16), " +
+                        "`balance` DECIMAL(15, 2) NOT NULL, " +
+                        "`last_updated` TIMESTAMP DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP, " +
+                        "`version` BIGINT NOT NULL DEFAULT 0, " +
+                        "INDEX `idx_last_updated` (`last_updated`)" +
+                        ") CHARACTER SET utf8mb4 COLLATE utf8mb4_unicode_ci ENGINE=InnoDB",
+                table
+        );
+    }
+
+    // Highest journal sequence number committed per server, see BalanceJournal
+    private static String journalTableSQL(String table) {
+        return String.format(
+                "CREATE TABLE IF NOT EXISTS `%s` (" +
+                        "`server_id` VARCHAR(64) NOT NULL PRIMARY KEY, " +
+                        "`last_seq` BIGINT NOT NULL" +
+                        ") ENGINE=InnoDB",
+                table
+        );
+    }
+
+    // Settings all servers sharing the table have to agree on. For now only 'layout', see checkLayout().
+    private static String metaTableSQL(String table) {
+        return String.format(
+                "CREATE TABLE IF NOT EXISTS `%s` (" +
+                        "`name` VARCHAR(32) NOT NULL PRIMARY KEY, " +
+                        "`value` VARCHAR(32) NOT NULL" +
+                        ") ENGINE=InnoDB",
+                table
+        );
+    }
+
+    // Balance changes not yet folded into the balance table, see compactLedger()
+    private static String ledgerTableSQL(String table, boolean compactUuids) {
+        return String.format(
+                "CREATE TABLE IF NOT EXISTS `%s` (" +
+                        "`id` BIGINT AUTO_INCREMENT PRIMARY KEY, " +
+                        "`player_uuid` %s NOT NULL, " +
+                        "`player_name` VARCHAR(16), " +
+                        "`delta` DECIMAL(15, 2) NOT NULL, " +
+                        "`created` TIMESTAMP DEFAULT CURRENT_TIMESTAMP, " +
+                        "INDEX `idx_uuid` (`player_uuid`), " +
+                        "INDEX `idx_created` (`created`)" +
+                        ") CHARACTER SET utf8mb4 COLLATE utf8mb4_unicode_ci ENGINE=InnoDB",
+                table, compactUuids ? "BINARY(16)" : "CHAR(36)"
+        );
+    }
+
+    // Fold a ledger table, if there is one, completely. False if rows are left.
+    private boolean drainLedger(Connection conn, boolean checkLayout) throws SQLException {
+        try (ResultSet rs = conn.getMetaData().getTables(conn.getCatalog(), null, tableName + "_ledger", null)) {
+            if (!rs.next()) {
+                return true;
+            }
+        }
+        int folded = compactLedger(conn, 10, Integer.MAX_VALUE, checkLayout);
+        if (folded > 0) {
+            plugin.getPluginLogger().info("Folded " + folded + " ledger rows into '" + tableName + "'.");
+        }
+        try (Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery(String.format("SELECT COUNT(*) FROM `%s_ledger`", tableName))) {
+            return rs.next() && rs.getLong(1) == 0;
+        }
+    }
+
+    private boolean hasCompactLayout(Connection conn) throws SQLException {
+        try (ResultSet rs = conn.getMetaData().getColumns(conn.getCatalog(), null, tableName, "player_uuid")) {
+            return rs.next() && rs.getString("TYPE_NAME").toUpperCase().contains("BINARY");
+        }
+    }
+
+    /**
+     * Copy the CHAR(36) table into a compact one while the servers keep running, then swap the two
+     * with an atomic RENAME. Rows are copied in id ranges of {@link #MIGRATION_CHUNK_SIZE}, each
+     * chunk its own statement, so no long lock is held on the old table. The copy is an upsert that
+     * only takes rows with a newer version, so an interrupted migration simply starts over on the
+     * next startup. The old table is kept as {@code <table>_legacy}.
+     * <p>
+     * Servers still on the old layout keep writing during the copy. Before the swap the layout row
+     * is set to 'migrating', which makes them refuse to write (see {@link #checkLayout}); rows
+     * changed until then are caught up by last_updated, and the ledger is folded in and recreated
+     * with the new layout. Once the row says 'compact' those servers switch over by themselves.
+     */
+    private boolean migrateToCompactLayout(Connection conn) throws SQLException {
+        String compactTable = tableName + "_compact";
+        String legacyTable = tableName + "_legacy";
+        String lockName = tableName + "_migration";
+
+        try (PreparedStatement lock = conn.prepareStatement("SELECT GET_LOCK(?, 0)")) {
+            lock.setString(1, lockName);
+            try (ResultSet rs = lock.executeQuery()) {
+                if (!rs.next() || rs.getInt(1) != 1) {
+                    plugin.getPluginLogger().warning("Another server is migrating '" + tableName +
+                            "' to compact UUIDs, this one switches over once it is done.");
+                    return false;
+                }
+            }
+        }
+        try {
+            if (hasCompactLayout(conn)) {
+                // Another server finished the migration in the meantime
+                setLayout(conn, LAYOUT_COMPACT);
+                return true;
+            }
+            try (ResultSet rs = conn.getMetaData().getTables(conn.getCatalog(), null, legacyTable, null)) {
+                if (rs.next()) {
+                    plugin.getPluginLogger().warning("Cannot migrate '" + tableName + "' to compact UUIDs: '" +
+                            legacyTable + "' already exists. Drop or rename it first.");
+                    return false;
+                }
+            }
+            return copyToCompactLayout(conn, compactTable, legacyTable);
+        } finally {
+            try (PreparedStatement release = conn.prepareStatement("SELECT RELEASE_LOCK(?)")) {
+                release.setString(1, lockName);
+                release.execute();
+            }
+        }
+    }
+
+    private boolean copyToCompactLayout(Connection conn, String compactTable, String legacyTable) throws SQLException {
+        // version is assigned last, the conditions before it still see the old one
+        String copySQL = "INSERT INTO `%s` (player_uuid, player_name, balance, last_updated, version) " +
+                "SELECT UNHEX(REPLACE(player_uuid, '-', '')), player_name, balance, last_updated, version " +
+                "FROM `%s` WHERE %s " +
+                "ON DUPLICATE KEY UPDATE " +
+                "player_name = IF(VALUES(version) > version, VALUES(player_name), player_name), " +
+                "balance = IF(VALUES(version) > version, VALUES(balance), balance), " +
+                "last_updated = IF(VALUES(version) > version, VALUES(last_updated), last_updated), " +
+                "version = GREATEST(version, VALUES(version))";
+
+        plugin.getPluginLogger().info("Migrating '" + tableName + "' to compact BINARY(16) UUIDs...");
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute(compactTableSQL(compactTable));
+
+            Timestamp copyStart = currentTimestamp(conn);
+            long maxId;
+            try (ResultSet rs = stmt.executeQuery(String.format("SELECT COALESCE(MAX(id), 0) FROM `%s`", tableName))) {
+                rs.next();
+                maxId = rs.getLong(1);
+            }
+
+            long copied = 0;
+            try (PreparedStatement copy = conn.prepareStatement(
+                    String.format(copySQL, compactTable, tableName, "id > ? AND id <= ?"))) {
+                for (long from = 0; from < maxId; from += MIGRATION_CHUNK_SIZE) {
+                    copy.setLong(1, from);
+                    copy.setLong(2, from + MIGRATION_CHUNK_SIZE);
+                    copied += copy.executeUpdate();
+                }
+            }
+            plugin.getPluginLogger().info("Copied " + maxId + " rows (" + copied + " affected), catching up...");
+
+            // Rows changed while copying, the other servers are still writing
+            Timestamp catchUpStart = currentTimestamp(conn);
+            catchUp(conn, String.format(copySQL, compactTable, tableName, "last_updated >= ?"), copyStart);
+
+            // Waits for the write transactions holding the layout row, later ones see 'migrating'
+            setLayout(conn, LAYOUT_MIGRATING);
+            boolean renamed = false;
+            try {
+                boolean hadLedger;
+                try (ResultSet rs = conn.getMetaData().getTables(conn.getCatalog(), null, tableName + "_ledger", null)) {
+                    hadLedger = rs.next();
+                }
+                // The ledger has the same UUID layout, fold it in so it can be recreated afterwards
+                if (!drainLedger(conn, false)) {
+                    plugin.getPluginLogger().warning("Cannot migrate '" + tableName + "' to compact UUIDs while " +
+                            "its ledger still has rows, trying again on the next start.");
+                    return false;
+                }
+                catchUp(conn, String.format(copySQL, compactTable, tableName, "last_updated >= ?"), catchUpStart);
+                // Calls of the other servers that checked the layout row just before it changed
+                sleep(LAYOUT_CHECK_INTERVAL_MILLIS * 2);
+
+                stmt.execute(String.format("RENAME TABLE `%s` TO `%s`, `%s` TO `%s`",
+                        tableName, legacyTable, compactTable, tableName));
+                renamed = true;
+                if (hadLedger) {
+                    stmt.execute(String.format("DROP TABLE IF EXISTS `%s_ledger`", tableName));
+                    stmt.execute(ledgerTableSQL(tableName + "_ledger", true));
+                }
+                setLayout(conn, LAYOUT_COMPACT);
+                // Nothing should be left, but never let an old row replace a newer one
+                catchUp(conn, String.format(copySQL, tableName, legacyTable, "last_updated >= ?"), catchUpStart);
+            } finally {
+                if (!renamed) {
+                    setLayout(conn, LAYOUT_LEGACY);
+                }
+            }
+        }
+        plugin.getPluginLogger().info("Migration finished. The old table was kept as '" + legacyTable +
+                "' and can be dropped once everything works.");
+        return true;
+    }
+
+    private static void sleep(long millis) throws SQLException {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLTransientException("Interrupted during the migration", e);
+        }
+    }
+
+    private void catchUp(Connection conn, String sql, Timestamp since) throws SQLException {
+        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+            // Same one second margin as the poll watermark
+            stmt.setTimestamp(1, new Timestamp(since.getTime() - 1000));
+            stmt.executeUpdate();
+        }
+    }
+
+    private Timestamp currentTimestamp(Connection conn) throws SQLException {
+        try (Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT CURRENT_TIMESTAMP")) {
+            rs.next();
+            return rs.getTimestamp(1);
+        }
+    }
+
+    // Write the layout row if there is none and repair it after a migration that stopped halfway
+    private void initLayout(Connection conn) throws SQLException {
+        try (PreparedStatement stmt = conn.prepareStatement(String.format(
+                "INSERT IGNORE INTO `%s_meta` (name, value) VALUES ('layout', ?)", tableName))) {
+            stmt.setString(1, compactUuids ? LAYOUT_COMPACT : LAYOUT_LEGACY);
+            stmt.executeUpdate();
+        }
+        String layout = readLayout(conn, false);
+        if (compactUuids && !LAYOUT_COMPACT.equals(layout)) {
+            // Stopped right after the RENAME
+            setLayout(conn, LAYOUT_COMPACT);
+        } else if (!compactUuids && LAYOUT_MIGRATING.equals(layout) && !isMigrationRunning(conn)) {
+            // Stopped before the RENAME, the old table is still the one in use
+            plugin.getPluginLogger().warning("An earlier migration of '" + tableName + "' to compact UUIDs " +
+                    "did not finish, writing to the old layout again.");
+            setLayout(conn, LAYOUT_LEGACY);
+        }
+    }
+
+    private boolean isMigrationRunning(Connection conn) throws SQLException {
+        try (PreparedStatement stmt = conn.prepareStatement("SELECT IS_FREE_LOCK(?)")) {
+            stmt.setString(1, tableName + "_migration");
+            try (ResultSet rs = stmt.executeQuery()) {
+                return rs.next() && rs.getInt(1) != 1;
+            }
+        }
+    }
+
+    // The layout row, 'legacy' if there is none. With lock, the row can't change until the
+    // transaction ends.
+    private String readLayout(Connection conn, boolean lock) throws SQLException {
+        String sql = String.format("SELECT value FROM `%s_meta` WHERE name = 'layout'%s",
+                tableName, lock ? " LOCK IN SHARE MODE" : "");
+        try (Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery(sql)) {
+            return rs.next() ? rs.getString(1) : LAYOUT_LEGACY;
+        }
+    }
+
+    private void setLayout(Connection conn, String layout) throws SQLException {
+        try (PreparedStatement stmt = conn.prepareStatement(String.format(
+                "UPDATE `%s_meta` SET value = ? WHERE name = 'layout'", tableName))) {
+            stmt.setString(1, layout);
+            stmt.executeUpdate();
+        }
+    }
+
+    /**
+     * Old layout only: fail while another server migrates the table to compact UUIDs, and switch
+     * to them once it is done. Writes call this at the start of their transaction with
+     * {@code lock} set, so the migration can't start until they have committed; everything else
+     * goes through {@link #checkLayout()}.
+     */
+    private void checkLayout(Connection conn, boolean lock) throws SQLException {
+        if (compactUuids) {
+            return;
+        }
+        String layout = readLayout(conn, lock);
+        if (LAYOUT_COMPACT.equals(layout)) {
+            compactUuids = true;
+            plugin.getPluginLogger().info("'" + tableName + "' was migrated to compact UUIDs by another server, " +
+                    "switching over.");
+        } else if (LAYOUT_MIGRATING.equals(layout)) {
+            throw new SQLTransientException("'" + tableName + "' is being migrated to compact UUIDs");
+        } else {
+            layoutCheckedAt = System.currentTimeMillis();
+        }
+    }
+
+    // Unlocked check before every call, at most once per LAYOUT_CHECK_INTERVAL_MILLIS
+    private void checkLayout() throws SQLException {
+        if (compactUuids || System.currentTimeMillis() - layoutCheckedAt < LAYOUT_CHECK_INTERVAL_MILLIS) {
+            return;
+        }
+        try (Connection conn = dataSource.getConnection()) {
+            checkLayout(conn, false);
+        }
+    }
+
+    // Tables created by older versions lack the columns/indexes used for incremental polling
+    private void upgradeTable(Connection conn) throws SQLException {
+        DatabaseMetaData meta = conn.getMetaData();
+        try (Statement stmt = conn.createStatement()) {
+            try (ResultSet rs = meta.getColumns(conn.getCatalog(), null, tableName, "version")) {
+                if (!rs.next()) {
+                    plugin.getPluginLogger().info("Adding column 'version' to '" + tableName + "'...");
+                    stmt.execute(String.format(
+                            "ALTER TABLE `%s` ADD COLUMN `version` BIGINT NOT NULL DEFAULT 0", tableName));
+                }
+            }
+
+            boolean hasLastUpdatedIndex = false;
+            try (ResultSet rs = meta.getIndexInfo(conn.getCatalog(), null, tableName, false, false)) {
+                while (rs.next()) {
+                    if ("idx_last_updated".equalsIgnoreCase(rs.getString("INDEX_NAME"))) {
+                        hasLastUpdatedIndex = true;
+                    }
+                }
+            }
+            if (!hasLastUpdatedIndex) {
+                plugin.getPluginLogger().info("Adding index 'idx_last_updated' to '" + tableName + "'...");
+                stmt.execute(String.format(
+                        "ALTER TABLE `%s` ADD INDEX `idx_last_updated` (`last_updated`)", tableName));
+            }
         }
     }
 
@@ -107,7 +545,9 @@ public class DatabaseManager {
                         "`player_name` VARCHAR(16), " +
                         "`balance` DECIMAL(15, 2) NOT NULL, " +
                         "`last_updated` TIMESTAMP DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP, " +
-                        "INDEX `idx_uuid` (`player_uuid`)" +
+                        "`version` BIGINT NOT NULL DEFAULT 0, " +
+                        "INDEX `idx_uuid` (`player_uuid`), " +
+                        "INDEX `idx_last_updated` (`last_updated`)" +
                         ") CHARACTER SET utf8mb4 COLLATE utf8mb4_unicode_ci ENGINE=InnoDB",
                 tableName
         );
@@ -122,71 +562,824 @@ public class DatabaseManager {
     }
 
     public double getBalance(UUID playerUUID) throws SQLException {
-        String sql = String.format("SELECT balance FROM %s WHERE player_uuid = ?", tableName);
+        return guarded("get_balance", () -> {
+            if (ledgerEnabled) {
+                Map<UUID, Double> balances = new HashMap<>();
+                try (Connection conn = dataSource.getConnection()) {
+                    readBalances(conn, List.of(playerUUID), balances);
+                }
+                notePrimary(List.of(playerUUID));
+                return balances.getOrDefault(playerUUID, plugin.getConfigManager().getStartingBalance());
+            }
 
-        try (Connection conn = dataSource.getConnection();
-             PreparedStatement stmt = conn.prepareStatement(sql)) {
-            stmt.setString(1, playerUUID.toString());
+            try (Connection conn = dataSource.getConnection()) {
+                double balance = readBalance(conn, playerUUID);
+                notePrimary(List.of(playerUUID));
+                return balance;
+            }
+        });
+    }
 
-            ResultSet rs = stmt.executeQuery();
-            if (rs.next()) {
-                return rs.getDouble("balance");
+    /**
+     * Read the balances of several players on one connection, with one IN-query per
+     * {@link ConfigManager#getSaveBatchSize()} players. Players without a row get the starting
+     * balance, like in {@link #getBalance(UUID)}.
+     */
+    public Map<UUID, Double> getBalances(Collection<UUID> playerUUIDs) throws SQLException {
+        return getBalances(playerUUIDs, false);
+    }
+
+    /**
+     * Like {@link #getBalances(Collection)}, read from the replica if {@code allowReplica} is set
+     * and it may serve all of these players.
+     */
+    public Map<UUID, Double> getBalances(Collection<UUID> playerUUIDs, boolean allowReplica) throws SQLException {
+        return guarded("get_balances", () -> {
+            if (playerUUIDs.isEmpty()) {
+                return new HashMap<>();
             }
-        }
-        return plugin.getConfigManager().getStartingBalance();
+
+            List<UUID> uuids = new ArrayList<>(playerUUIDs);
+            Map<UUID, Double> balances = allowReplica ? onReplica(uuids, (conn, beat) -> readBalances(conn, uuids)) : null;
+            if (balances == null) {
+                try (Connection conn = dataSource.getConnection()) {
+                    balances = readBalances(conn, uuids);
+                }
+                notePrimary(uuids);
+            }
+
+            double starting = plugin.getConfigManager().getStartingBalance();
+            for (UUID uuid : uuids) {
+                balances.putIfAbsent(uuid, starting);
+            }
+            return balances;
+        });
     }
 
     public void saveBalance(UUID playerUUID, String playerName, double balance) throws SQLException {
-        String sql = String.format(
+        if (ledgerEnabled) {
+            // The player's pending ledger rows have to be dropped in the same transaction
+            saveBalances(List.of(new BalanceEntry(playerUUID, playerName, balance)));
+            return;
+        }
+        guarded("save_balance", () -> {
+            String sql = String.format(
+                    "INSERT INTO %s (player_uuid, player_name, balance) VALUES (?, ?, ?) " +
+                            "ON DUPLICATE KEY UPDATE player_name = VALUES(player_name), balance = VALUES(balance), " +
+                            "version = version + 1",
+                    tableName
+            );
+
+            try (Connection conn = dataSource.getConnection();
+                 PreparedStatement stmt = conn.prepareStatement(sql)) {
+                // The old layout checks the layout row in the same transaction
+                boolean transaction = !compactUuids;
+                conn.setAutoCommit(!transaction);
+                try {
+                    checkLayout(conn, true);
+                    setUuid(stmt, 1, playerUUID);
+                    stmt.setString(2, playerName);
+                    stmt.setDouble(3, balance);
+                    stmt.executeUpdate();
+                    if (transaction) {
+                        conn.commit();
+                    }
+                } catch (SQLException e) {
+                    if (transaction) {
+                        conn.rollback();
+                    }
+                    throw e;
+                }
+            }
+            notePrimary(List.of(playerUUID));
+        });
+    }
+
+    /**
+     * Write a chunk of balances in a single transaction on one connection. The statements are
+     * sent as one JDBC batch, which the driver rewrites into a multi-row
+     * INSERT ... ON DUPLICATE KEY UPDATE. Callers are expected to slice large sets into chunks
+     * of {@link ConfigManager#getSaveBatchSize()} rows. In ledger mode the players' pending
+     * ledger rows are deleted first, they are replaced by the new balance.
+     */
+    public void saveBalances(List<BalanceEntry> entries) throws SQLException {
+        guarded("save_balances", () -> {
+            if (entries.isEmpty()) {
+                return;
+            }
+
+            String sql = String.format(
+                    "INSERT INTO %s (player_uuid, player_name, balance) VALUES (?, ?, ?) " +
+                            "ON DUPLICATE KEY UPDATE player_name = VALUES(player_name), balance = VALUES(balance), " +
+                            "version = version + 1",
+                    tableName
+            );
+
+            try (Connection conn = dataSource.getConnection()) {
+                conn.setAutoCommit(false);
+                try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+                    checkLayout(conn, true);
+                    if (ledgerEnabled) {
+                        // Ledger first, in the same order as compaction, so the two can't deadlock
+                        deleteLedgerRows(conn, "player_uuid", entries.stream().map(BalanceEntry::uuid).toList());
+                    }
+                    for (BalanceEntry entry : entries) {
+                        setUuid(stmt, 1, entry.uuid());
+                        stmt.setString(2, entry.name());
+                        stmt.setDouble(3, entry.balance());
+                        stmt.addBatch();
+                    }
+                    stmt.executeBatch();
+                    conn.commit();
+                } catch (SQLException e) {
+                    conn.rollback();
+                    throw e;
+                }
+            }
+            notePrimary(entries.stream().map(BalanceEntry::uuid).toList());
+        });
+    }
+
+    /**
+     * Atomically add a delta to the stored balance and return the resulting balance, all in one
+     * statement and one round trip. This avoids overwriting the DB with stale values when multiple
+     * servers write concurrently. If no row exists, one is inserted with (startingBalance + delta)
+     * by the same upsert, so there is no UPDATE-then-INSERT race on the unique key.
+     * <p>
+     * MySQL has no RETURNING, so the new balance travels back through LAST_INSERT_ID(expr): the
+     * update branch stores it there in cents (shifted by {@link #RETURNED_BALANCE_OFFSET} to stay
+     * positive) and the driver hands it out as the generated key of the statement.
+     */
+    public double addBalanceDelta(UUID playerUUID, String playerName, double delta) throws SQLException {
+        return addBalanceDelta(playerUUID, playerName, delta, null, 0);
+    }
+
+    /**
+     * Like {@link #addBalanceDelta(UUID, String, double)}, and in the same transaction record
+     * {@code journalSeq} as committed for {@code serverId} (skipped if serverId is null).
+     */
+    public double addBalanceDelta(UUID playerUUID, String playerName, double delta,
+                                  String serverId, long journalSeq) throws SQLException {
+        if (ledgerEnabled) {
+            return addBalanceDeltas(List.of(new BalanceDelta(playerUUID, playerName, delta)), serverId, journalSeq)
+                    .get(playerUUID).balance();
+        }
+        return guarded("add_delta", () -> {
+            String sql = String.format(
+                    "INSERT INTO %1$s (player_uuid, player_name, balance) VALUES (?, ?, ?) " +
+                            "ON DUPLICATE KEY UPDATE " +
+                            "balance = (LAST_INSERT_ID(ROUND((balance + ?) * 100) + %2$d) - %2$d) / 100, " +
+                            "version = version + 1",
+                    tableName, RETURNED_BALANCE_OFFSET
+            );
+            double starting = plugin.getConfigManager().getStartingBalance();
+
+            double newBalance = Double.NaN;
+            try (Connection conn = dataSource.getConnection()) {
+                // The old layout checks the layout row in the same transaction
+                boolean transaction = serverId != null || !compactUuids;
+                conn.setAutoCommit(!transaction);
+                try (PreparedStatement stmt = conn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)) {
+                    checkLayout(conn, true);
+                    setUuid(stmt, 1, playerUUID);
+                    stmt.setString(2, playerName);
+                    stmt.setDouble(3, starting + delta);
+                    stmt.setDouble(4, delta);
+
+                    // 1 = a new row was inserted, 2 = the existing row was updated
+                    if (stmt.executeUpdate() == 1) {
+                        newBalance = starting + delta;
+                    } else {
+                        try (ResultSet keys = stmt.getGeneratedKeys()) {
+                            if (keys.next()) {
+                                newBalance = (keys.getLong(1) - RETURNED_BALANCE_OFFSET) / 100.0;
+                            }
+                        }
+                    }
+                    if (Double.isNaN(newBalance)) {
+                        // Should not happen. Read it back on this connection: getBalance() would
+                        // need a second permit while this call holds one.
+                        newBalance = readBalance(conn, playerUUID);
+                    }
+                    if (serverId != null) {
+                        confirmJournal(conn, serverId, journalSeq);
+                    }
+                    if (transaction) {
+                        conn.commit();
+                    }
+                } catch (SQLException e) {
+                    if (transaction) {
+                        conn.rollback();
+                    }
+                    throw e;
+                }
+            }
+            notePrimary(List.of(playerUUID));
+            return newBalance;
+        });
+    }
+
+    private double readBalance(Connection conn, UUID playerUUID) throws SQLException {
+        String sql = String.format("SELECT balance FROM %s WHERE player_uuid = ?", tableName);
+        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+            setUuid(stmt, 1, playerUUID);
+            try (ResultSet rs = stmt.executeQuery()) {
+                return rs.next() ? rs.getDouble("balance") : plugin.getConfigManager().getStartingBalance();
+            }
+        }
+    }
+
+    /**
+     * Apply a set of deltas in one transaction and return the resulting balances. Rows that don't
+     * exist yet are created with (startingBalance + delta) by the same upsert, so there is no
+     * UPDATE-then-INSERT race with other servers. The deltas are sent as JDBC batches of
+     * {@link ConfigManager#getSaveBatchSize()} rows and the new balances are read back with one
+     * IN-query per chunk before committing.
+     * <p>
+     * In ledger mode the deltas are inserted as ledger rows instead, which takes no lock on the
+     * players' balance rows, and the balances read back include the pending ledger rows.
+     * <p>
+     * In the same transaction {@code journalSeq} is recorded as committed for {@code serverId}
+     * (skipped if serverId is null). The new balances come with the row version they were read
+     * at, 0 in ledger mode where the ledger rows don't change it.
+     */
+    public Map<UUID, BalanceChange> addBalanceDeltas(List<BalanceDelta> deltas, String serverId,
+                                                     long journalSeq) throws SQLException {
+        return guarded("add_deltas", () -> {
+            Map<UUID, BalanceChange> newBalances = new HashMap<>();
+            if (deltas.isEmpty()) {
+                return newBalances;
+            }
+
+            int chunkSize = plugin.getConfigManager().getSaveBatchSize();
+
+            try (Connection conn = dataSource.getConnection()) {
+                conn.setAutoCommit(false);
+                try (PreparedStatement write = conn.prepareStatement(ledgerEnabled ? ledgerInsertSQL() : deltaUpsertSQL())) {
+                    checkLayout(conn, true);
+                    for (int from = 0; from < deltas.size(); from += chunkSize) {
+                        List<BalanceDelta> chunk = deltas.subList(from, Math.min(deltas.size(), from + chunkSize));
+                        for (BalanceDelta delta : chunk) {
+                            if (ledgerEnabled) {
+                                setUuid(write, 1, delta.uuid());
+                                write.setString(2, delta.name());
+                                write.setDouble(3, delta.delta());
+                            } else {
+                                setDeltaUpsert(write, delta);
+                            }
+                            write.addBatch();
+                        }
+                        write.executeBatch();
+                        readWrittenBalances(conn, chunk.stream().map(BalanceDelta::uuid).toList(), newBalances);
+                    }
+                    if (serverId != null) {
+                        confirmJournal(conn, serverId, journalSeq);
+                    }
+                    conn.commit();
+                } catch (SQLException e) {
+                    conn.rollback();
+                    throw e;
+                }
+            }
+            notePrimary(newBalances.keySet());
+            return newBalances;
+        });
+    }
+
+    private String deltaUpsertSQL() {
+        return String.format(
                 "INSERT INTO %s (player_uuid, player_name, balance) VALUES (?, ?, ?) " +
-                        "ON DUPLICATE KEY UPDATE player_name = VALUES(player_name), balance = VALUES(balance)",
+                        "ON DUPLICATE KEY UPDATE balance = balance + ?, version = version + 1",
                 tableName
         );
+    }
 
-        try (Connection conn = dataSource.getConnection();
-             PreparedStatement stmt = conn.prepareStatement(sql)) {
-            stmt.setString(1, playerUUID.toString());
-            stmt.setString(2, playerName);
-            stmt.setDouble(3, balance);
+    private void setDeltaUpsert(PreparedStatement stmt, BalanceDelta delta) throws SQLException {
+        setUuid(stmt, 1, delta.uuid());
+        stmt.setString(2, delta.name());
+        stmt.setDouble(3, plugin.getConfigManager().getStartingBalance() + delta.delta());
+        stmt.setDouble(4, delta.delta());
+    }
+
+    private String ledgerInsertSQL() {
+        return String.format("INSERT INTO %s_ledger (player_uuid, player_name, delta) VALUES (?, ?, ?)", tableName);
+    }
+
+    /**
+     * Fold the ledger into the balance table: the oldest rows are summed per player, added with
+     * the same upsert as {@link #addBalanceDeltas(List, String, long)} and deleted, {@link
+     * ConfigManager#getSaveBatchSize()} rows per transaction. A named lock keeps other servers
+     * from compacting at the same time. Returns the number of rows folded, or -1 if another
+     * server is compacting.
+     */
+    public int compactLedger() throws SQLException {
+        return guarded("compact_ledger", () -> {
+            try (Connection conn = dataSource.getConnection()) {
+                return compactLedger(conn, 0, MAX_COMPACTION_CHUNKS, true);
+            }
+        });
+    }
+
+    // checkLayout: false only for the migration, which has set the layout row itself
+    private int compactLedger(Connection conn, int lockWaitSeconds, int maxChunks, boolean checkLayout)
+            throws SQLException {
+        String lockName = tableName + "_ledger_compaction";
+        try (PreparedStatement lock = conn.prepareStatement("SELECT GET_LOCK(?, ?)")) {
+            lock.setString(1, lockName);
+            lock.setInt(2, lockWaitSeconds);
+            try (ResultSet rs = lock.executeQuery()) {
+                if (!rs.next() || rs.getInt(1) != 1) {
+                    return -1;
+                }
+            }
+        }
+
+        int isolation = conn.getTransactionIsolation();
+        try {
+            int chunkSize = plugin.getConfigManager().getSaveBatchSize();
+            int folded = 0;
+            for (int i = 0; i < maxChunks; i++) {
+                int rows = foldLedgerChunk(conn, chunkSize, checkLayout);
+                folded += rows;
+                if (rows < chunkSize) {
+                    break;
+                }
+            }
+            return folded;
+        } finally {
+            // The setup connection is used further after draining
+            conn.setAutoCommit(true);
+            conn.setTransactionIsolation(isolation);
+            try (PreparedStatement release = conn.prepareStatement("SELECT RELEASE_LOCK(?)")) {
+                release.setString(1, lockName);
+                release.execute();
+            }
+        }
+    }
+
+    private int foldLedgerChunk(Connection conn, int chunkSize, boolean checkLayout) throws SQLException {
+        String selectSql = String.format(
+                "SELECT id, player_uuid, player_name, delta FROM %s_ledger ORDER BY id LIMIT ? FOR UPDATE", tableName);
+
+        conn.setAutoCommit(false);
+        // No gap locks, servers keep appending while the chunk is folded. The locking read still
+        // waits for rows whose insert isn't committed yet.
+        conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+        try {
+            if (checkLayout) {
+                checkLayout(conn, true);
+            }
+            List<Long> ids = new ArrayList<>();
+            Map<UUID, BalanceDelta> sums = new LinkedHashMap<>();
+            try (PreparedStatement select = conn.prepareStatement(selectSql)) {
+                select.setInt(1, chunkSize);
+                try (ResultSet rs = select.executeQuery()) {
+                    while (rs.next()) {
+                        ids.add(rs.getLong("id"));
+                        UUID uuid = getUuid(rs, "player_uuid");
+                        sums.merge(uuid, new BalanceDelta(uuid, rs.getString("player_name"), rs.getDouble("delta")),
+                                (a, b) -> new BalanceDelta(uuid, b.name() != null ? b.name() : a.name(),
+                                        a.delta() + b.delta()));
+                    }
+                }
+            }
+
+            if (!ids.isEmpty()) {
+                try (PreparedStatement upsert = conn.prepareStatement(deltaUpsertSQL())) {
+                    for (BalanceDelta sum : sums.values()) {
+                        setDeltaUpsert(upsert, sum);
+                        upsert.addBatch();
+                    }
+                    upsert.executeBatch();
+                }
+                // By id, a row committed after the read must stay for the next chunk
+                deleteLedgerRows(conn, "id", ids);
+            }
+            conn.commit();
+            return ids.size();
+        } catch (SQLException e) {
+            conn.rollback();
+            throw e;
+        }
+    }
+
+    // Delete ledger rows by id or by player_uuid
+    private void deleteLedgerRows(Connection conn, String column, List<?> keys) throws SQLException {
+        String sql = String.format("DELETE FROM %s_ledger WHERE %s IN (%s)", tableName, column, placeholders(keys.size()));
+        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+            for (int i = 0; i < keys.size(); i++) {
+                if (keys.get(i) instanceof UUID uuid) {
+                    setUuid(stmt, i + 1, uuid);
+                } else {
+                    stmt.setLong(i + 1, (Long) keys.get(i));
+                }
+            }
             stmt.executeUpdate();
         }
     }
 
+    private static String placeholders(int count) {
+        StringBuilder placeholders = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            placeholders.append(i == 0 ? "?" : ",?");
+        }
+        return placeholders.toString();
+    }
+
+    public boolean isLedgerEnabled() {
+        return ledgerEnabled;
+    }
+
+    private void confirmJournal(Connection conn, String serverId, long journalSeq) throws SQLException {
+        String sql = String.format(
+                "INSERT INTO %s_journal (server_id, last_seq) VALUES (?, ?) " +
+                        "ON DUPLICATE KEY UPDATE last_seq = GREATEST(last_seq, VALUES(last_seq))",
+                tableName
+        );
+        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+            stmt.setString(1, serverId);
+            stmt.setLong(2, journalSeq);
+            stmt.executeUpdate();
+        }
+    }
+
+    /** Highest journal sequence number committed for this server, 0 if none. */
+    public long getJournalSeq(String serverId) throws SQLException {
+        return guarded("get_journal_seq", () -> {
+            String sql = String.format("SELECT last_seq FROM %s_journal WHERE server_id = ?", tableName);
+            try (Connection conn = dataSource.getConnection();
+                 PreparedStatement stmt = conn.prepareStatement(sql)) {
+                stmt.setString(1, serverId);
+                try (ResultSet rs = stmt.executeQuery()) {
+                    return rs.next() ? rs.getLong(1) : 0;
+                }
+            }
+        });
+    }
+
+    // One IN-query per save-batch-size players
+    private Map<UUID, Double> readBalances(Connection conn, List<UUID> uuids) throws SQLException {
+        Map<UUID, Double> balances = new HashMap<>();
+        int chunkSize = plugin.getConfigManager().getSaveBatchSize();
+        for (int from = 0; from < uuids.size(); from += chunkSize) {
+            readBalances(conn, uuids.subList(from, Math.min(uuids.size(), from + chunkSize)), balances);
+        }
+        return balances;
+    }
+
+    private void readBalances(Connection conn, List<UUID> chunk, Map<UUID, Double> into) throws SQLException {
+        if (ledgerEnabled) {
+            readLedgerBalances(conn, chunk, into);
+            return;
+        }
+        String sql = String.format("SELECT player_uuid, balance FROM %s WHERE player_uuid IN (%s)",
+                tableName, placeholders(chunk.size()));
+
+        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+            for (int i = 0; i < chunk.size(); i++) {
+                setUuid(stmt, i + 1, chunk.get(i));
+            }
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    into.put(getUuid(rs, "player_uuid"), rs.getDouble("balance"));
+                }
+            }
+        }
+    }
+
+    // Balances and row versions after a write, in the writing transaction
+    private void readWrittenBalances(Connection conn, List<UUID> chunk, Map<UUID, BalanceChange> into)
+            throws SQLException {
+        if (ledgerEnabled) {
+            Map<UUID, Double> balances = new HashMap<>();
+            readLedgerBalances(conn, chunk, balances);
+            balances.forEach((uuid, balance) -> into.put(uuid, new BalanceChange(uuid, balance, 0)));
+            return;
+        }
+        String sql = String.format("SELECT player_uuid, balance, version FROM %s WHERE player_uuid IN (%s)",
+                tableName, placeholders(chunk.size()));
+
+        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+            for (int i = 0; i < chunk.size(); i++) {
+                setUuid(stmt, i + 1, chunk.get(i));
+            }
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    UUID uuid = getUuid(rs, "player_uuid");
+                    into.put(uuid, new BalanceChange(uuid, rs.getDouble("balance"), rs.getLong("version")));
+                }
+            }
+        }
+    }
+
     /**
-     * Atomically add a delta to the stored balance. This avoids overwriting the DB with stale
-     * values when multiple servers write concurrently. If no row exists, insert one with
-     * (startingBalance + delta).
+     * Stored balance plus the sum of the pending ledger rows. Both come from one UNION statement,
+     * so a compaction committing in between can't count a row twice or not at all. Players with
+     * ledger rows but no balance row start from the starting balance.
      */
-    public void addBalanceDelta(UUID playerUUID, String playerName, double delta) throws SQLException {
-        String updateSql = String.format("UPDATE %s SET balance = balance + ? WHERE player_uuid = ?", tableName);
+    private void readLedgerBalances(Connection conn, List<UUID> chunk, Map<UUID, Double> into) throws SQLException {
+        String in = placeholders(chunk.size());
+        String sql = String.format(
+                "SELECT player_uuid, balance AS amount, 1 AS stored FROM %1$s WHERE player_uuid IN (%2$s) " +
+                        "UNION ALL " +
+                        "SELECT player_uuid, SUM(delta), 0 FROM %1$s_ledger WHERE player_uuid IN (%2$s) GROUP BY player_uuid",
+                tableName, in);
 
-        try (Connection conn = dataSource.getConnection()) {
-            // Try atomic update first
-            try (PreparedStatement update = conn.prepareStatement(updateSql)) {
-                update.setDouble(1, delta);
-                update.setString(2, playerUUID.toString());
-                int affected = update.executeUpdate();
-
-                if (affected == 0) {
-                    // No row existed — insert with startingBalance + delta
-                    double starting = plugin.getConfigManager().getStartingBalance();
-                    String insertSql = String.format("INSERT INTO %s (player_uuid, player_name, balance) VALUES (?, ?, ?)", tableName);
-                    try (PreparedStatement insert = conn.prepareStatement(insertSql)) {
-                        insert.setString(1, playerUUID.toString());
-                        insert.setString(2, playerName);
-                        insert.setDouble(3, starting + delta);
-                        insert.executeUpdate();
-                    }
+        Map<UUID, Double> stored = new HashMap<>();
+        Map<UUID, Double> pending = new HashMap<>();
+        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+            for (int i = 0; i < chunk.size(); i++) {
+                setUuid(stmt, i + 1, chunk.get(i));
+                setUuid(stmt, chunk.size() + i + 1, chunk.get(i));
+            }
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    (rs.getInt("stored") == 1 ? stored : pending).put(getUuid(rs, "player_uuid"), rs.getDouble("amount"));
                 }
             }
         }
+
+        double starting = plugin.getConfigManager().getStartingBalance();
+        for (UUID uuid : chunk) {
+            Double balance = stored.get(uuid);
+            Double sum = pending.get(uuid);
+            if (balance != null || sum != null) {
+                into.put(uuid, BalanceTracker.roundToCents((balance != null ? balance : starting) +
+                        (sum != null ? sum : 0)));
+            }
+        }
+    }
+
+    /**
+     * Return every row changed since the given watermark, together with the watermark for the next
+     * call. The watermark is taken from the database clock (so server clocks don't matter) and
+     * lags behind by {@link ConfigManager#getDbPollOverlap()} seconds to cover the second
+     * precision of last_updated and transactions that commit late. Pass null to start fresh.
+     * Served by idx_last_updated, so an idle table costs one empty index range scan. In ledger
+     * mode new ledger rows count as changes as well, and the balances include the pending rows.
+     * <p>
+     * With a read replica the rows come from there and the watermark is the primary's time of the
+     * replica's newest heartbeat instead of the current time, so rows the replica doesn't have
+     * yet are still ahead of it. Rows of players this server already knows a newer balance of
+     * are left out.
+     */
+    public ChangeSet getChangedBalancesSince(Timestamp watermark) throws SQLException {
+        return guarded("poll_changes", () -> {
+            ChangeSet fromReplica = onReplica(List.of(), (conn, beat) -> {
+                ChangeSet changeSet = readChangesSince(conn, beat.time(), watermark);
+                changeSet.changes().removeIf(change -> replica.isAhead(change.uuid(), beat));
+                return changeSet;
+            });
+            if (fromReplica != null) {
+                return fromReplica;
+            }
+
+            try (Connection conn = dataSource.getConnection()) {
+                ChangeSet changeSet = readChangesSince(conn, currentTimestamp(conn), watermark);
+                notePrimary(changeSet.changes().stream().map(BalanceChange::uuid).toList());
+                return changeSet;
+            }
+        });
+    }
+
+    // now: the database time up to which conn has every commit
+    private ChangeSet readChangesSince(Connection conn, Timestamp now, Timestamp watermark) throws SQLException {
+        if (ledgerEnabled) {
+            return readChangedLedgerBalancesSince(conn, now, watermark);
+        }
+        String sql = String.format(
+                "SELECT player_uuid, balance, version FROM %s WHERE last_updated >= ?", tableName);
+        long overlapMillis = plugin.getConfigManager().getDbPollOverlap() * 1000L;
+        Timestamp next = new Timestamp(now.getTime() - overlapMillis);
+        Timestamp since = watermark != null ? watermark : next;
+
+        List<BalanceChange> changes = new ArrayList<>();
+        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+            stmt.setTimestamp(1, since);
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    changes.add(new BalanceChange(
+                            getUuid(rs, "player_uuid"),
+                            rs.getDouble("balance"),
+                            rs.getLong("version")));
+                }
+            }
+        }
+        return new ChangeSet(changes, next);
+    }
+
+    private ChangeSet readChangedLedgerBalancesSince(Connection conn, Timestamp now, Timestamp watermark)
+            throws SQLException {
+        String sql = String.format(
+                "SELECT player_uuid FROM %1$s WHERE last_updated >= ? " +
+                        "UNION SELECT player_uuid FROM %1$s_ledger WHERE created >= ?", tableName);
+        long overlapMillis = plugin.getConfigManager().getDbPollOverlap() * 1000L;
+        Timestamp next = new Timestamp(now.getTime() - overlapMillis);
+        Timestamp since = watermark != null ? watermark : next;
+
+        List<UUID> changed = new ArrayList<>();
+        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+            stmt.setTimestamp(1, since);
+            stmt.setTimestamp(2, since);
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    changed.add(getUuid(rs, "player_uuid"));
+                }
+            }
+        }
+
+        Map<UUID, Double> balances = readBalances(conn, changed);
+        List<BalanceChange> changes = new ArrayList<>();
+        balances.forEach((uuid, balance) -> changes.add(new BalanceChange(uuid, balance, 0)));
+        return new ChangeSet(changes, next);
+    }
+
+    // Run a read on the replica if it may serve these players, null if the primary has to. A
+    // failing replica doesn't count against the circuit breaker, the read just moves over.
+    private <T> T onReplica(Collection<UUID> players, ReplicaRead<T> read) {
+        ReadReplica replica = this.replica;
+        if (replica == null) {
+            return null;
+        }
+        ReadReplica.Beat beat = replica.getVisible();
+        try (Connection conn = replica.getConnection(players, beat)) {
+            return conn != null ? read.read(conn, beat) : null;
+        } catch (SQLException e) {
+            replica.markDown(e);
+            return null;
+        }
+    }
+
+    private void notePrimary(Collection<UUID> players) {
+        if (replica != null) {
+            replica.notePrimary(players);
+        }
+    }
+
+    private interface ReplicaRead<T> {
+        T read(Connection conn, ReadReplica.Beat beat) throws SQLException;
+    }
+
+    private void setUuid(PreparedStatement stmt, int index, UUID uuid) throws SQLException {
+        if (compactUuids) {
+            stmt.setBytes(index, toBytes(uuid));
+        } else {
+            stmt.setString(index, uuid.toString());
+        }
+    }
+
+    private UUID getUuid(ResultSet rs, String column) throws SQLException {
+        return compactUuids ? fromBytes(rs.getBytes(column)) : UUID.fromString(rs.getString(column));
+    }
+
+    static byte[] toBytes(UUID uuid) {
+        byte[] bytes = new byte[16];
+        long msb = uuid.getMostSignificantBits();
+        long lsb = uuid.getLeastSignificantBits();
+        for (int i = 0; i < 8; i++) {
+            bytes[i] = (byte) (msb >>> (56 - 8 * i));
+            bytes[8 + i] = (byte) (lsb >>> (56 - 8 * i));
+        }
+        return bytes;
+    }
+
+    static UUID fromBytes(byte[] bytes) {
+        long msb = 0;
+        long lsb = 0;
+        for (int i = 0; i < 8; i++) {
+            msb = (msb << 8) | (bytes[i] & 0xFF);
+            lsb = (lsb << 8) | (bytes[8 + i] & 0xFF);
+        }
+        return new UUID(msb, lsb);
+    }
+
+    public boolean usesCompactUuids() {
+        return compactUuids;
+    }
+
+    // One database operation: waits for a free slot, then goes through the circuit breaker.
+    // The wait and the call itself are timed separately, op is the label in the metrics.
+    private <T> T guarded(String op, CircuitBreaker.SqlCall<T> call) throws SQLException {
+        long start = System.nanoTime();
+        try {
+            if (!permits.tryAcquire(plugin.getConfigManager().getConnectionTimeout(), TimeUnit.MILLISECONDS)) {
+                metrics.increment("balsync_db_errors", "op=\"" + op + "\"");
+                throw new SQLTransientConnectionException("No database connection free in time");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLTransientConnectionException("Interrupted while waiting for the database", e);
+        }
+        long acquired = System.nanoTime();
+        metrics.timer("balsync_db_permit_wait").record(acquired - start);
+        try {
+            return breaker.call(() -> {
+                checkLayout();
+                return call.call();
+            });
+        } catch (SQLException | RuntimeException e) {
+            metrics.increment("balsync_db_errors", "op=\"" + op + "\"");
+            throw e;
+        } finally {
+            permits.release();
+            metrics.timer("balsync_db_call", "op=\"" + op + "\"").recordSince(acquired);
+        }
+    }
+
+    private void guarded(String op, CircuitBreaker.SqlRunnable call) throws SQLException {
+        guarded(op, () -> {
+            call.run();
+            return null;
+        });
+    }
+
+    /**
+     * Run database work on a BalSync virtual thread. The future completes with the result, or
+     * exceptionally with the SQLException.
+     */
+    public <T> CompletableFuture<T> supplyAsync(CircuitBreaker.SqlCall<T> call) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        try {
+            executor.execute(() -> {
+                try {
+                    future.complete(call.call());
+                } catch (SQLException | RuntimeException e) {
+                    future.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Disconnected
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    public CompletableFuture<Double> getBalanceAsync(UUID playerUUID) {
+        return supplyAsync(() -> getBalance(playerUUID));
+    }
+
+    // For work that isn't a single database call but should still stay off the Bukkit pool
+    public Executor getExecutor() {
+        return executor;
     }
 
     public Connection getConnection() throws SQLException {
         return dataSource.getConnection();
     }
 
+    // False while the circuit breaker is open and calls would fail right away
+    public boolean isAvailable() {
+        return breaker.isAvailable();
+    }
+
+    // Null if no read replica is configured
+    public ReadReplica getReadReplica() {
+        return replica;
+    }
+
+    public CircuitBreaker getCircuitBreaker() {
+        return breaker;
+    }
+
     public boolean isConnected() {
         return dataSource != null && !dataSource.isClosed();
     }
-}
\ No newline at end of file
+
+    // Hikari reports connection checkouts and the pool state through this
+    private final class PoolMetrics implements IMetricsTracker {
+        PoolMetrics(PoolStats poolStats) {
+            metrics.gauge("balsync_pool_connections", "state=\"active\"", poolStats::getActiveConnections);
+            metrics.gauge("balsync_pool_connections", "state=\"idle\"", poolStats::getIdleConnections);
+            metrics.gauge("balsync_pool_connections", "state=\"total\"", poolStats::getTotalConnections);
+            metrics.gauge("balsync_pool_pending_threads", poolStats::getPendingThreads);
+        }
+
+        @Override
+        public void recordConnectionAcquiredNanos(long elapsedAcquiredNanos) {
+            metrics.timer("balsync_pool_acquire").record(elapsedAcquiredNanos);
+        }
+
+        @Override
+        public void recordConnectionUsageMillis(long elapsedBorrowedMillis) {
+            metrics.timer("balsync_pool_usage").record(elapsedBorrowedMillis * 1_000_000L);
+        }
+
+        @Override
+        public void recordConnectionTimeout() {
+            metrics.increment("balsync_pool_timeouts");
+        }
+    }
+
+    public record BalanceEntry(UUID uuid, String name, double balance) {
+    }
+
+    public record BalanceDelta(UUID uuid, String name, double delta) {
+    }
+
+    // version: the row's version column, 0 if it doesn't say (ledger mode)
+    public record BalanceChange(UUID uuid, double balance, long version) {
+    }
+
+    public record ChangeSet(List<BalanceChange> changes, Timestamp watermark) {
+    }
+}
@@ -0,0 +1,415 @@
+package com.user404_.balsync;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+
+/**
+ * Write-behind queue for balance deltas. Deltas are summed per player in memory and written by a
+ * single writer thread, either every {@code settings.write-behind.flush-interval} milliseconds or
+ * as soon as {@code settings.write-behind.max-pending} players are waiting. Because there is only
+ * one writer and a player's pending delta is taken out of the map atomically, the writes for a
+ * player always reach the database in the order they were queued.
+ * <p>
+ * Every delta is appended to the {@link BalanceJournal} before it is queued, so queueing never
+ * touches the network and nothing is lost while the database is down. The writer commits the
+ * journal position together with the deltas and then truncates the journal; on startup whatever
+ * the database hasn't confirmed is queued again.
+ */
+public class DeltaWriteQueue implements BalanceSync.Writer {
+    private final BalSyncPlugin plugin;
+    private final DatabaseManager databaseManager;
+    private final WriteListener listener;
+    // null if change notifications are off
+    private final ChangeNotifier notifier;
+    private final Map<UUID, DatabaseManager.BalanceDelta> pending = new ConcurrentHashMap<>();
+    // Players whose delta was taken out of pending and is being written right now
+    private final Set<UUID> inFlight = ConcurrentHashMap.newKeySet();
+    private final AtomicBoolean flushRequested = new AtomicBoolean();
+    // One flush at a time, the writer thread may still be in one when flushNow() runs on shutdown
+    private final ReentrantLock flushLock = new ReentrantLock();
+    private final ScheduledExecutorService writer;
+    private final int maxPending;
+    private final SyncMetrics.Timer flushTime;
+
+    // null if the journal could not be opened, deltas are then only kept in memory
+    private final BalanceJournal journal;
+    private final String serverId;
+    private final ScheduledExecutorService journalSyncer;
+    // settings.journal.sync-interval-ms = 0: every append is on disk before enqueue returns
+    private final boolean syncOnAppend;
+    // Appending to the journal and queueing happen together, so a drained batch covers every
+    // journal record up to the sequence number read in the same critical section
+    private final Object journalLock = new Object();
+    // Unconfirmed journal records are queued once the database can tell which ones those are
+    private volatile boolean recovered;
+
+    public DeltaWriteQueue(BalSyncPlugin plugin, DatabaseManager databaseManager,
+                           WriteListener listener, ChangeNotifier notifier) {
+        this.plugin = plugin;
+        this.databaseManager = databaseManager;
+        this.listener = listener;
+        this.notifier = notifier;
+        this.maxPending = plugin.getConfigManager().getWriteBehindMaxPending();
+        this.flushTime = plugin.getSyncMetrics().timer("balsync_delta_flush");
+        this.writer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "BalSync-Writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        File journalFolder = new File(plugin.getDataFolder(), "journal");
+        this.serverId = resolveServerId(journalFolder);
+        this.journal = openJournal(journalFolder);
+        this.recovered = journal == null;
+        this.journalSyncer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "BalSync-Journal");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long syncInterval = plugin.getConfigManager().getJournalSyncInterval();
+        this.syncOnAppend = journal != null && syncInterval == 0;
+        if (journal != null && !syncOnAppend) {
+            // fsync in groups instead of once per delta. A crash loses at most one interval.
+            journalSyncer.scheduleWithFixedDelay(this::syncJournal, syncInterval, syncInterval, TimeUnit.MILLISECONDS);
+        }
+
+        long interval = plugin.getConfigManager().getWriteBehindFlushInterval();
+        writer.scheduleWithFixedDelay(this::flush, 0, interval, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void enqueue(UUID playerUUID, String playerName, double delta) {
+        synchronized (journalLock) {
+            if (journal != null) {
+                journal.append(playerUUID, playerName, delta);
+            }
+            pending.merge(playerUUID, new DatabaseManager.BalanceDelta(playerUUID, playerName, delta),
+                    DeltaWriteQueue::combine);
+        }
+        if (syncOnAppend) {
+            // Outside the lock, so concurrent callers share one fsync
+            syncJournal();
+        }
+
+        if (pending.size() >= maxPending) {
+            requestFlush();
+        }
+    }
+
+    // Write as soon as possible instead of waiting for the next interval
+    public void requestFlush() {
+        if (flushRequested.compareAndSet(false, true)) {
+            try {
+                writer.execute(this::flush);
+            } catch (RejectedExecutionException e) {
+                // Shutting down, flushNow() writes the rest
+                flushRequested.set(false);
+            }
+        }
+    }
+
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+    @Override
+    public boolean hasPending(UUID playerUUID) {
+        return pending.containsKey(playerUUID) || inFlight.contains(playerUUID);
+    }
+
+    @Override
+    public boolean isInFlight(UUID playerUUID) {
+        return inFlight.contains(playerUUID);
+    }
+
+    // False if the journal could not be opened and queued deltas only live in memory
+    public boolean isJournaled() {
+        return journal != null;
+    }
+
+    public int getJournalSegmentCount() {
+        return journal != null ? journal.getSegmentCount() : 0;
+    }
+
+    // Stop the writer thread, waiting up to timeoutMillis for a running write
+    public void stop(long timeoutMillis) {
+        writer.shutdown();
+        try {
+            if (!writer.awaitTermination(Math.max(0, timeoutMillis), TimeUnit.MILLISECONDS)) {
+                plugin.getPluginLogger().warning("Balance writer did not stop in time.");
+                writer.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Write everything queued on the calling thread. Waits up to timeoutMillis for a flush the
+     * writer thread is still running. Returns false if something is left.
+     */
+    public boolean flushNow(long timeoutMillis) {
+        try {
+            if (!flushLock.tryLock(Math.max(0, timeoutMillis), TimeUnit.MILLISECONDS)) {
+                return false;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        try {
+            doFlush();
+        } finally {
+            flushLock.unlock();
+        }
+        return pending.isEmpty();
+    }
+
+    // After stop(): make the journal durable for the next start
+    public void close() {
+        journalSyncer.shutdown();
+        if (journal != null) {
+            try {
+                journal.close();
+            } catch (IOException e) {
+                plugin.getPluginLogger().log(Level.SEVERE, "Failed to close the balance journal", e);
+            }
+        }
+    }
+
+    private void flush() {
+        flushLock.lock();
+        try {
+            doFlush();
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    private void doFlush() {
+        flushRequested.set(false);
+        // Circuit breaker open: the deltas wait in the journal
+        if (!databaseManager.isAvailable()) {
+            return;
+        }
+        if (!recovered && !recover()) {
+            return;
+        }
+        if (pending.isEmpty()) {
+            return;
+        }
+
+        // Take each player's delta out atomically, new deltas start a fresh entry
+        List<DatabaseManager.BalanceDelta> batch = new ArrayList<>();
+        long journalSeq;
+        synchronized (journalLock) {
+            for (UUID uuid : pending.keySet()) {
+                inFlight.add(uuid);
+                DatabaseManager.BalanceDelta delta = pending.remove(uuid);
+                if (delta != null && Math.abs(delta.delta()) > 0.001) {
+                    batch.add(delta);
+                }
+            }
+            journalSeq = journal != null ? journal.getLastSeq() : 0;
+        }
+        if (batch.isEmpty()) {
+            inFlight.clear();
+            return;
+        }
+        // The journal on disk must reach at least as far as the position we are about to commit
+        syncJournal();
+
+        String journalId = journal != null ? serverId : null;
+        long writeStartedAt = System.currentTimeMillis();
+        long start = System.nanoTime();
+        boolean committed = false;
+        try {
+            Map<UUID, DatabaseManager.BalanceChange> newBalances;
+            if (batch.size() == 1 && notifier == null) {
+                // Usually just one player changed since the last flush: one upsert, one round trip.
+                // It returns no row version, notifications need the read-back of the batch write.
+                DatabaseManager.BalanceDelta delta = batch.get(0);
+                double newBalance = databaseManager.addBalanceDelta(delta.uuid(), delta.name(),
+                        delta.delta(), journalId, journalSeq);
+                newBalances = Map.of(delta.uuid(), new DatabaseManager.BalanceChange(delta.uuid(), newBalance, 0));
+            } else {
+                newBalances = databaseManager.addBalanceDeltas(batch, journalId, journalSeq);
+            }
+            committed = true;
+            Map<UUID, Long> versions = new HashMap<>();
+            for (DatabaseManager.BalanceDelta delta : batch) {
+                DatabaseManager.BalanceChange written = newBalances.get(delta.uuid());
+                if (written != null) {
+                    listener.onWritten(delta.uuid(), delta.delta(), written.balance(), written.version(),
+                            writeStartedAt);
+                    versions.put(delta.uuid(), written.version());
+                }
+            }
+            if (notifier != null) {
+                notifier.publish(versions);
+            }
+            flushTime.recordSince(start);
+        } catch (SQLException e) {
+            // Nothing was committed, put the deltas back for the next flush
+            requeue(batch);
+            plugin.getPluginLogger().log(Level.WARNING,
+                    "Failed to write " + batch.size() + " balance changes, retrying on next flush", e);
+        } catch (RuntimeException e) {
+            if (!committed) {
+                requeue(batch);
+            }
+            plugin.getPluginLogger().log(Level.SEVERE, "Unexpected error in balance writer", e);
+        } finally {
+            inFlight.clear();
+        }
+
+        // Last, so a journal error can't keep the listener or the other servers from hearing of
+        // the write. Until the truncation succeeds the records stay on disk; the database knows
+        // they are committed, so a restart doesn't replay them.
+        if (committed && journal != null) {
+            try {
+                journal.confirm(journalSeq);
+            } catch (IOException e) {
+                plugin.getPluginLogger().log(Level.WARNING, "Failed to truncate the balance journal", e);
+            }
+        }
+    }
+
+    private void requeue(List<DatabaseManager.BalanceDelta> batch) {
+        synchronized (journalLock) {
+            for (DatabaseManager.BalanceDelta delta : batch) {
+                pending.merge(delta.uuid(), delta, DeltaWriteQueue::combine);
+            }
+        }
+    }
+
+    // Queue the journal records the database hasn't committed yet
+    private boolean recover() {
+        long confirmed;
+        try {
+            confirmed = databaseManager.getJournalSeq(serverId);
+        } catch (SQLException e) {
+            plugin.getPluginLogger().log(Level.WARNING,
+                    "Could not read the journal position, keeping the journal until the database is back", e);
+            return false;
+        }
+
+        int replayed = 0;
+        boolean renumbered = false;
+        synchronized (journalLock) {
+            // The journal folder was lost but the server id kept: the numbering restarted at or
+            // below what the database already confirmed, and those records would never be replayed
+            if (journal.getFirstSessionSeq() <= confirmed) {
+                long oldLastSeq;
+                try {
+                    oldLastSeq = journal.skipTo(confirmed);
+                } catch (IOException e) {
+                    plugin.getPluginLogger().log(Level.SEVERE, "Failed to renumber the balance journal", e);
+                    return false;
+                }
+                // Nothing was flushed yet, so everything appended since startup is still pending.
+                // Append it again with new numbers and drop the old segments.
+                for (DatabaseManager.BalanceDelta delta : pending.values()) {
+                    journal.append(delta.uuid(), delta.name(), delta.delta());
+                }
+                renumbered = true;
+                try {
+                    journal.sync();
+                    journal.confirm(oldLastSeq);
+                } catch (IOException e) {
+                    // The next flush syncs again and its confirm covers the old segments too
+                    plugin.getPluginLogger().log(Level.WARNING, "Failed to rewrite the balance journal", e);
+                }
+            }
+            for (BalanceJournal.Record record : journal.getRecovered()) {
+                if (record.seq() > confirmed) {
+                    pending.merge(record.uuid(), new DatabaseManager.BalanceDelta(record.uuid(), record.name(),
+                            record.delta()), DeltaWriteQueue::combine);
+                    replayed++;
+                }
+            }
+            journal.clearRecovered();
+        }
+        if (renumbered) {
+            plugin.getPluginLogger().warning("The balance journal was behind the database (position " +
+                    confirmed + "), continuing after it.");
+        }
+        recovered = true;
+        if (replayed > 0) {
+            plugin.getPluginLogger().info("Replaying " + replayed + " balance changes from the journal.");
+        }
+        return true;
+    }
+
+    private void syncJournal() {
+        if (journal == null) {
+            return;
+        }
+        try {
+            journal.sync();
+        } catch (IOException e) {
+            plugin.getPluginLogger().log(Level.SEVERE, "Failed to write the balance journal", e);
+        }
+    }
+
+    private BalanceJournal openJournal(File folder) {
+        try {
+            return new BalanceJournal(folder, plugin.getConfigManager().getJournalSegmentSize() * 1024L * 1024L);
+        } catch (IOException e) {
+            plugin.getPluginLogger().log(Level.SEVERE,
+                    "Failed to open the balance journal, queued balance changes are only kept in memory!", e);
+            return null;
+        }
+    }
+
+    // Journal positions are stored per server, so every server needs its own id
+    private String resolveServerId(File folder) {
+        String configured = plugin.getConfigManager().getServerId();
+        if (!configured.isEmpty()) {
+            return configured;
+        }
+        File file = new File(folder, "server-id");
+        try {
+            if (file.exists()) {
+                return Files.readString(file.toPath(), StandardCharsets.UTF_8).trim();
+            }
+            folder.mkdirs();
+            String generated = UUID.randomUUID().toString();
+            Files.writeString(file.toPath(), generated, StandardCharsets.UTF_8);
+            return generated;
+        } catch (IOException e) {
+            plugin.getPluginLogger().log(Level.WARNING, "Failed to store the server id", e);
+            return "port-" + plugin.getServer().getPort();
+        }
+    }
+
+    private static DatabaseManager.BalanceDelta combine(DatabaseManager.BalanceDelta older,
+                                                        DatabaseManager.BalanceDelta newer) {
+        String name = newer.name() != null ? newer.name() : older.name();
+        return new DatabaseManager.BalanceDelta(newer.uuid(), name, older.delta() + newer.delta());
+    }
+
+    public interface WriteListener {
+        // Called on the writer thread after a player's delta has been committed. version is the row
+        // version the write left (0 if unknown), writeStartedAt the wall clock time before the
+        // write was sent, the new balance is at least that recent.
+        void onWritten(UUID playerUUID, double delta, double newBalance, long version, long writeStartedAt);
+    }
+}
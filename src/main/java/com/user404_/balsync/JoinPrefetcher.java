@@ -0,0 +1,88 @@
+package com.user404_.balsync;
+
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Short-lived cache of database balances read during {@code AsyncPlayerPreLoginEvent}, so the
+ * join handler can apply the balance right away instead of starting its own read. Entries are
+ * taken out on join and expire after {@code settings.join-prefetch.ttl} seconds if the login
+ * never completes. Also keeps the join-to-synced latency stats shown by {@code /balsync status}.
+ */
+public class JoinPrefetcher {
+    private final long ttlNanos;
+    private final Map<UUID, Prefetched> cache = new ConcurrentHashMap<>();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder latencySumMicros = new LongAdder();
+    private final LongAdder latencyCount = new LongAdder();
+    private volatile long lastLatencyMicros;
+    private final SyncMetrics.Timer joinLatency;
+
+    public JoinPrefetcher(BalSyncPlugin plugin) {
+        this.ttlNanos = plugin.getConfigManager().getJoinPrefetchTtl() * 1_000_000_000L;
+        this.joinLatency = plugin.getSyncMetrics().timer("balsync_join_sync");
+    }
+
+    // readStartedAt: wall clock millis before the balance was read
+    public void put(UUID playerUUID, double balance, long readStartedAt) {
+        cache.put(playerUUID, new Prefetched(balance, readStartedAt, System.nanoTime()));
+        // Logins that never completed
+        if (cache.size() > 64) {
+            long now = System.nanoTime();
+            cache.values().removeIf(entry -> now - entry.fetchedAt() > ttlNanos);
+        }
+    }
+
+    /** Take the prefetched balance out of the cache, or null if there is none or it expired. */
+    public Prefetched take(UUID playerUUID) {
+        Prefetched entry = cache.remove(playerUUID);
+        if (entry == null || System.nanoTime() - entry.fetchedAt() > ttlNanos) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return entry;
+    }
+
+    public void discard(UUID playerUUID) {
+        cache.remove(playerUUID);
+    }
+
+    // Time from PlayerJoinEvent until the database balance was applied
+    public void recordJoinLatency(long joinedAtNanos) {
+        long nanos = System.nanoTime() - joinedAtNanos;
+        joinLatency.record(nanos);
+        long micros = nanos / 1000;
+        lastLatencyMicros = micros;
+        latencySumMicros.add(micros);
+        latencyCount.increment();
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getLastLatencyMicros() {
+        return lastLatencyMicros;
+    }
+
+    public long getAverageLatencyMicros() {
+        long count = latencyCount.sum();
+        return count == 0 ? 0 : latencySumMicros.sum() / count;
+    }
+
+    public void clear() {
+        cache.clear();
+    }
+
+    public record Prefetched(double balance, long readStartedAt, long fetchedAt) {
+    }
+}
@@ -0,0 +1,92 @@
+package com.user404_.balsync;
+
+import org.bukkit.Bukkit;
+import org.bukkit.OfflinePlayer;
+import org.bukkit.scheduler.BukkitTask;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * Walks all known players in small steps instead of checking every account at once. Each tick
+ * the scanner checks the next slice of players, sized so the whole set is covered once per
+ * {@code settings.offline-scan.period} seconds. The player list is taken at the start of every
+ * cycle and sorted by last played time, so recently active players are checked first.
+ */
+public class OfflineBalanceScanner implements Runnable {
+    private final Consumer<OfflinePlayer> check;
+    private final int periodTicks;
+    // Async timer runs must not overlap, the cursor belongs to one run at a time
+    private final ReentrantLock lock = new ReentrantLock();
+    private BukkitTask task;
+
+    private OfflinePlayer[] players = new OfflinePlayer[0];
+    private int cursor;
+    private volatile int cycleSize;
+    private volatile int cyclePosition;
+
+    public OfflineBalanceScanner(BalSyncPlugin plugin, Consumer<OfflinePlayer> check) {
+        this.check = check;
+        this.periodTicks = plugin.getConfigManager().getOfflineScanPeriod() * 20;
+        this.task = Bukkit.getScheduler().runTaskTimerAsynchronously(plugin, this, 1L, 1L);
+    }
+
+    @Override
+    public void run() {
+        if (!lock.tryLock()) {
+            return;
+        }
+        try {
+            if (cursor >= players.length) {
+                startCycle();
+            }
+
+            // Spread one cycle evenly over the configured period
+            int perTick = (players.length + periodTicks - 1) / periodTicks;
+            int end = Math.min(players.length, cursor + perTick);
+            for (; cursor < end; cursor++) {
+                check.accept(players[cursor]);
+            }
+            cyclePosition = cursor;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Runs on the async timer thread. getLastPlayed() can read the player's data file, so it is
+    // read once per player up front instead of on every comparison.
+    private void startCycle() {
+        OfflinePlayer[] known = Bukkit.getOfflinePlayers();
+        LastPlayed[] byLastPlayed = new LastPlayed[known.length];
+        for (int i = 0; i < known.length; i++) {
+            byLastPlayed[i] = new LastPlayed(known[i], known[i].getLastPlayed());
+        }
+        Arrays.sort(byLastPlayed, Comparator.comparingLong(LastPlayed::time).reversed());
+        for (int i = 0; i < known.length; i++) {
+            known[i] = byLastPlayed[i].player();
+        }
+        players = known;
+        cursor = 0;
+        cycleSize = players.length;
+    }
+
+    public int getCycleSize() {
+        return cycleSize;
+    }
+
+    public int getCyclePosition() {
+        return cyclePosition;
+    }
+
+    public void shutdown() {
+        if (task != null) {
+            task.cancel();
+            task = null;
+        }
+    }
+
+    private record LastPlayed(OfflinePlayer player, long time) {
+    }
+}
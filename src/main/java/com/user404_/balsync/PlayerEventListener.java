@@ -3,7 +3,9 @@ package com.user404_.balsync;
 import net.milkbowl.vault.economy.Economy;
 import org.bukkit.entity.Player;
 import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
 import org.bukkit.event.Listener;
+import org.bukkit.event.player.AsyncPlayerPreLoginEvent;
 import org.bukkit.event.player.PlayerJoinEvent;
 import org.bukkit.event.player.PlayerQuitEvent;
 
@@ -18,24 +20,38 @@ public class PlayerEventListener implements Listener {
         this.economy = plugin.getEconomy(); // Economy vom Plugin holen
     }
 
+    // Runs off the main thread, so the database read can start before the player has joined
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onPlayerPreLogin(AsyncPlayerPreLoginEvent event) {
+        if (event.getLoginResult() != AsyncPlayerPreLoginEvent.Result.ALLOWED
+                || !plugin.getConfigManager().isJoinPrefetchEnabled()) {
+            return;
+        }
+        balanceManager.prefetchBalance(event.getUniqueId());
+    }
+
     @EventHandler
     public void onPlayerJoin(PlayerJoinEvent event) {
+        long joinedAt = System.nanoTime();
         Player player = event.getPlayer();
         if (!player.hasPermission("balsync.sync")) {
+            balanceManager.discardPrefetchedBalance(player.getUniqueId());
             return; // Spieler ohne Permission wird nicht synchronisiert
         }
 
-        plugin.getServer().getScheduler().runTaskLater(plugin, () -> {
-            if (player.isOnline()) {
-                balanceManager.loadPlayerBalance(player);
-            }
-        }, 40L);
+        balanceManager.syncOnJoin(player, joinedAt);
     }
 
     @EventHandler
     public void onPlayerQuit(PlayerQuitEvent event) {
         Player player = event.getPlayer();
 
+        // Picked up by the next auto-save cycle. Without auto-save nothing would ever drain the
+        // dirty set, save-on-quit and the offline monitoring cover the player then.
+        if (plugin.getConfigManager().getAutoSaveInterval() > 0) {
+            balanceManager.markDirty(player.getUniqueId());
+        }
+
         if (plugin.getConfigManager().saveOnQuit()) {
             balanceManager.savePlayerBalance(player);
         }
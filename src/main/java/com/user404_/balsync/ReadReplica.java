@@ -0,0 +1,248 @@
+package com.user404_.balsync;
+
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.Collection;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+
+/**
+ * Second connection pool on a read replica ({@code database.replica}). The database poll reads
+ * from it, join loads as well if {@code use-for-joins} is set; every write stays on the primary.
+ * <p>
+ * The lag is measured with a heartbeat: every second this server writes its clock to
+ * {@code <table>_heartbeat} on the primary and reads its row back from the replica. Since the
+ * replica applies commits in order, it has everything this server committed before the beat it
+ * shows. Reads go to the primary instead while the replica is unreachable or further behind than
+ * {@code max-lag}, and for players this server wrote or read on the primary after that beat, so
+ * a replica read never hands out an older balance than the one this server already knows.
+ */
+public class ReadReplica {
+    private static final long HEARTBEAT_INTERVAL_MILLIS = 1000;
+
+    private final BalSyncPlugin plugin;
+    private final String heartbeatTable;
+    // New on every start, a restarted server must not read its old beats back
+    private final String serverKey = UUID.randomUUID().toString();
+    private final long maxLagMillis;
+    private final HikariDataSource dataSource;
+    private final ScheduledExecutorService heartbeat;
+    private DataSource primary;
+
+    // When this server last learned a player's balance from the primary, by its own clock
+    private final Map<UUID, Long> primaryState = new ConcurrentHashMap<>();
+    private volatile Beat visible;
+    private volatile boolean healthy;
+    private final LongAdder reads = new LongAdder();
+    private final LongAdder fallbacks = new LongAdder();
+
+    public ReadReplica(BalSyncPlugin plugin) {
+        this.plugin = plugin;
+        ConfigManager config = plugin.getConfigManager();
+        this.heartbeatTable = config.getTableName() + "_heartbeat";
+        this.maxLagMillis = config.getReplicaMaxLag() * 1000L;
+
+        HikariConfig hikari = new HikariConfig();
+        hikari.setJdbcUrl(String.format("jdbc:mysql://%s:%d/%s",
+                config.getReplicaHost(), config.getReplicaPort(), config.getReplicaDatabaseName()));
+        hikari.setUsername(config.getReplicaUsername());
+        hikari.setPassword(config.getReplicaPassword());
+        hikari.addDataSourceProperty("useSSL", config.useSSL());
+        hikari.setPoolName("BalSync-Replica");
+        hikari.setReadOnly(true);
+        hikari.setMaximumPoolSize(config.getReplicaPoolSize());
+        hikari.setMinimumIdle(1);
+        // A replica that doesn't answer should send reads to the primary quickly, not after 30s
+        hikari.setConnectionTimeout(Math.min(2000, config.getConnectionTimeout()));
+        hikari.setIdleTimeout(config.getIdleTimeout());
+        // Start even if the replica is down, the heartbeat notices when it comes up
+        hikari.setInitializationFailTimeout(-1);
+        this.dataSource = new HikariDataSource(hikari);
+
+        this.heartbeat = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "BalSync-Heartbeat");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        SyncMetrics metrics = plugin.getSyncMetrics();
+        metrics.describe("balsync_replica_lag_seconds", "Age of the newest heartbeat visible on the read replica");
+        metrics.gauge("balsync_replica_lag_seconds", () -> Math.max(0, getLagMillis()) / 1000.0);
+        metrics.gauge("balsync_replica_healthy", () -> healthy ? 1 : 0);
+        metrics.gauge("balsync_replica_reads", reads::sum);
+        metrics.gauge("balsync_replica_fallbacks", fallbacks::sum);
+    }
+
+    /** Create the heartbeat table on the primary and start beating. */
+    public void start(DataSource primary) throws SQLException {
+        this.primary = primary;
+        try (Connection conn = primary.getConnection();
+             Statement stmt = conn.createStatement()) {
+            stmt.execute(String.format(
+                    "CREATE TABLE IF NOT EXISTS `%s` (" +
+                            "`server_key` CHAR(36) NOT NULL PRIMARY KEY, " +
+                            "`beat_millis` BIGINT NOT NULL, " +
+                            "`beat_time` TIMESTAMP(3) NOT NULL" +
+                            ") ENGINE=InnoDB",
+                    heartbeatTable));
+            // Rows of servers that were killed instead of stopped
+            stmt.executeUpdate(String.format(
+                    "DELETE FROM `%s` WHERE beat_time < NOW() - INTERVAL 1 DAY", heartbeatTable));
+        }
+        heartbeat.scheduleWithFixedDelay(this::beat, 0, HEARTBEAT_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        plugin.getPluginLogger().info("Read replica enabled, polling" +
+                (plugin.getConfigManager().isReplicaUsedForJoins() ? " and join loads" : "") + " read from it.");
+    }
+
+    private void beat() {
+        // Taken before the write, so a beat seen on the replica comes after everything this
+        // server had committed by then
+        long sentAt = System.currentTimeMillis();
+        try (Connection conn = primary.getConnection();
+             PreparedStatement stmt = conn.prepareStatement(String.format(
+                     "INSERT INTO `%s` (server_key, beat_millis, beat_time) VALUES (?, ?, CURRENT_TIMESTAMP(3)) " +
+                             "ON DUPLICATE KEY UPDATE beat_millis = VALUES(beat_millis), beat_time = VALUES(beat_time)",
+                     heartbeatTable))) {
+            stmt.setString(1, serverKey);
+            stmt.setLong(2, sentAt);
+            stmt.executeUpdate();
+        } catch (SQLException e) {
+            // The primary's trouble is the circuit breaker's business, the lag just grows
+            plugin.getPluginLogger().log(Level.FINE, "Heartbeat write failed", e);
+        }
+
+        try (Connection conn = dataSource.getConnection();
+             PreparedStatement stmt = conn.prepareStatement(String.format(
+                     "SELECT beat_millis, beat_time FROM `%s` WHERE server_key = ?", heartbeatTable))) {
+            stmt.setString(1, serverKey);
+            try (ResultSet rs = stmt.executeQuery()) {
+                if (rs.next()) {
+                    Beat beat = new Beat(rs.getLong("beat_millis"), rs.getTimestamp("beat_time"));
+                    if (visible == null || beat.millis() > visible.millis()) {
+                        visible = beat;
+                    }
+                    setHealthy(true, null);
+                }
+            }
+        } catch (SQLException e) {
+            setHealthy(false, e);
+        }
+
+        // The replica has caught up with these
+        Beat current = visible;
+        if (current != null) {
+            primaryState.values().removeIf(millis -> millis <= current.millis());
+        }
+    }
+
+    private void setHealthy(boolean value, SQLException cause) {
+        if (healthy == value) {
+            return;
+        }
+        healthy = value;
+        if (value) {
+            plugin.getPluginLogger().info("Read replica is available.");
+        } else {
+            plugin.getPluginLogger().warning("Read replica is unavailable, reading from the primary: " +
+                    cause.getMessage());
+        }
+    }
+
+    /**
+     * A replica connection for reading the given players, or null if the read has to go to the
+     * primary. The beat to check the results against is taken before, with {@link #getVisible()}.
+     */
+    public Connection getConnection(Collection<UUID> players, Beat beat) {
+        if (!healthy || beat == null || System.currentTimeMillis() - beat.millis() > maxLagMillis) {
+            fallbacks.increment();
+            return null;
+        }
+        for (UUID uuid : players) {
+            if (isAhead(uuid, beat)) {
+                fallbacks.increment();
+                return null;
+            }
+        }
+        try {
+            Connection conn = dataSource.getConnection();
+            reads.increment();
+            return conn;
+        } catch (SQLException e) {
+            markDown(e);
+            return null;
+        }
+    }
+
+    // A replica query failed, the heartbeat brings it back once it answers again
+    public void markDown(SQLException cause) {
+        fallbacks.increment();
+        setHealthy(false, cause);
+    }
+
+    /** True if this server knows a newer balance of the player than the replica had at the beat. */
+    public boolean isAhead(UUID playerUUID, Beat beat) {
+        Long millis = primaryState.get(playerUUID);
+        return millis != null && millis > beat.millis();
+    }
+
+    /** Called after the players' balances were written to or read from the primary. */
+    public void notePrimary(Collection<UUID> players) {
+        long now = System.currentTimeMillis();
+        for (UUID uuid : players) {
+            primaryState.merge(uuid, now, Math::max);
+        }
+    }
+
+    public Beat getVisible() {
+        return visible;
+    }
+
+    // -1 until the first beat came through
+    public long getLagMillis() {
+        Beat current = visible;
+        return current == null ? -1 : System.currentTimeMillis() - current.millis();
+    }
+
+    public String getStatus() {
+        long lag = getLagMillis();
+        return (healthy ? "lag " + (lag < 0 ? "?" : lag + " ms") : "unavailable") + ", " +
+                reads.sum() + " reads, " + fallbacks.sum() + " on primary";
+    }
+
+    public void close() {
+        heartbeat.shutdownNow();
+        if (primary != null) {
+            try (Connection conn = primary.getConnection();
+                 PreparedStatement stmt = conn.prepareStatement(String.format(
+                         "DELETE FROM `%s` WHERE server_key = ?", heartbeatTable))) {
+                stmt.setString(1, serverKey);
+                stmt.executeUpdate();
+            } catch (SQLException e) {
+                // Removed by the next start of any server after a day
+                plugin.getPluginLogger().log(Level.FINE, "Failed to remove the heartbeat row", e);
+            }
+        }
+        dataSource.close();
+    }
+
+    /**
+     * A heartbeat as read from the replica: this server's clock before the write and the
+     * primary's clock at the write. The replica holds every row committed before it.
+     */
+    public record Beat(long millis, Timestamp time) {
+    }
+}
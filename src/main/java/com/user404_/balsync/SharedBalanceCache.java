@@ -0,0 +1,242 @@
+package com.user404_.balsync;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.StandardOpenOption;
+import java.util.UUID;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Balance cache in a memory-mapped file, shared by all BalSync instances on the same host. A
+ * player moving between servers on the box is then loaded from memory instead of MySQL.
+ * <p>
+ * The file is a small header followed by a fixed open-addressing table of slots, each holding
+ * UUID, balance in cents, a version and a sequence counter. The version is the host clock
+ * (milliseconds) at which the balance was known to match the database, taken <i>before</i> the
+ * query or write that produced it; a slot is only replaced by a newer version, and readers only
+ * accept versions younger than {@code settings.shared-cache.max-age}. Changes made on other
+ * hosts are therefore picked up after at most max-age.
+ * <p>
+ * Slots are never locked. A writer moves the slot's sequence counter to an odd value with a CAS,
+ * writes and makes it even again; a reader retries if the counter was odd or changed while it
+ * read. If a server dies in the middle of a write, that one slot stays unusable until the file is
+ * deleted, which only costs cache hits.
+ */
+public class SharedBalanceCache {
+    private static final long MAGIC = 0x42616c53796e6343L; // "BalSyncC"
+    private static final int FORMAT = 1;
+    private static final int HEADER_SIZE = 64;
+    private static final int SLOT_SIZE = 40;
+    private static final int SEQ = 0;
+    private static final int MSB = 8;
+    private static final int LSB = 16;
+    private static final int CENTS = 24;
+    private static final int VERSION = 32;
+    // Slots looked at per UUID before the oldest of them is replaced
+    private static final int PROBES = 16;
+    private static final int READ_RETRIES = 8;
+    private static final int MAX_SLOTS = 1 << 22;
+
+    // Atomic access to the longs of the mapping; every field is 8-byte aligned
+    private static final VarHandle LONG = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private final int mask;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    public SharedBalanceCache(File file, int requestedSlots) throws IOException {
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null) {
+            parent.mkdirs();
+        }
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        int slots;
+        // Only one instance may create the file, the others use the size it picked
+        try (FileLock ignored = channel.lock()) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.nativeOrder());
+            if (channel.size() < HEADER_SIZE) {
+                slots = Integer.highestOneBit(Math.min(MAX_SLOTS, Math.max(1024, requestedSlots)) * 2 - 1);
+                header.putLong(MAGIC).putInt(FORMAT).putInt(slots).clear();
+                channel.write(header, 0);
+                // Sparse file, all slots start out empty
+                channel.write(ByteBuffer.allocate(1), HEADER_SIZE + (long) slots * SLOT_SIZE - 1);
+            } else {
+                channel.read(header, 0);
+                header.flip();
+                if (header.getLong() != MAGIC || header.getInt() != FORMAT) {
+                    channel.close();
+                    throw new IOException(file + " is not a BalSync cache file of this version");
+                }
+                slots = header.getInt();
+            }
+        }
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) slots * SLOT_SIZE);
+        mask = slots - 1;
+    }
+
+    /** The cached balance if its version isn't older than maxAgeMillis, otherwise NaN. */
+    public double get(UUID playerUUID, long maxAgeMillis) {
+        long msb = playerUUID.getMostSignificantBits();
+        long lsb = playerUUID.getLeastSignificantBits();
+        long[] slot = new long[5];
+        long bestVersion = Long.MIN_VALUE;
+        long bestCents = 0;
+
+        int index = indexFor(msb, lsb);
+        for (int probe = 0; probe < PROBES; probe++) {
+            int offset = offsetOf(index + probe);
+            if (!read(offset, slot)) {
+                continue;
+            }
+            if (slot[MSB / 8] == 0 && slot[LSB / 8] == 0) {
+                // Slots are never emptied, so the player can't be further along
+                break;
+            }
+            // Two servers may have inserted the player at the same time, take the newer slot
+            if (slot[MSB / 8] == msb && slot[LSB / 8] == lsb && slot[VERSION / 8] > bestVersion) {
+                bestVersion = slot[VERSION / 8];
+                bestCents = slot[CENTS / 8];
+            }
+        }
+
+        if (bestVersion >= System.currentTimeMillis() - maxAgeMillis) {
+            hits.increment();
+            return bestCents / 100.0;
+        }
+        misses.increment();
+        return Double.NaN;
+    }
+
+    /**
+     * Store a balance that matched the database at {@code version} (host clock, milliseconds,
+     * taken before the query or write). Ignored if the cache already has a newer version.
+     */
+    public void put(UUID playerUUID, double balance, long version) {
+        write(playerUUID, Math.round(balance * 100), version, false);
+    }
+
+    /** Make the player's entry stale, e.g. after another host announced a change. */
+    public void invalidate(UUID playerUUID) {
+        write(playerUUID, 0, 0, true);
+    }
+
+    private void write(UUID playerUUID, long cents, long version, boolean invalidate) {
+        long msb = playerUUID.getMostSignificantBits();
+        long lsb = playerUUID.getLeastSignificantBits();
+        long[] slot = new long[5];
+
+        // A lost CAS means another writer got to the slot in between, look again
+        for (int attempt = 0; attempt < 3; attempt++) {
+            int victim = -1;
+            long victimSeq = 0;
+            long victimVersion = Long.MAX_VALUE;
+            int target = -1;
+            long targetSeq = 0;
+
+            int index = indexFor(msb, lsb);
+            for (int probe = 0; probe < PROBES && target < 0; probe++) {
+                int offset = offsetOf(index + probe);
+                if (!read(offset, slot)) {
+                    continue;
+                }
+                boolean empty = slot[MSB / 8] == 0 && slot[LSB / 8] == 0;
+                if (slot[MSB / 8] == msb && slot[LSB / 8] == lsb) {
+                    if (!invalidate && slot[VERSION / 8] >= version) {
+                        return;
+                    }
+                    target = offset;
+                    targetSeq = slot[SEQ / 8];
+                } else if (empty) {
+                    if (invalidate) {
+                        return;
+                    }
+                    target = offset;
+                    targetSeq = slot[SEQ / 8];
+                } else if (slot[VERSION / 8] < victimVersion) {
+                    victim = offset;
+                    victimSeq = slot[SEQ / 8];
+                    victimVersion = slot[VERSION / 8];
+                }
+            }
+            if (target < 0) {
+                if (invalidate || victim < 0) {
+                    return;
+                }
+                target = victim;
+                targetSeq = victimSeq;
+            }
+
+            // Succeeds only if nobody wrote the slot since it was read
+            if (LONG.compareAndSet(buffer, target + SEQ, targetSeq, targetSeq + 1)) {
+                LONG.setOpaque(buffer, target + MSB, msb);
+                LONG.setOpaque(buffer, target + LSB, lsb);
+                if (!invalidate) {
+                    LONG.setOpaque(buffer, target + CENTS, cents);
+                }
+                LONG.setOpaque(buffer, target + VERSION, version);
+                LONG.setRelease(buffer, target + SEQ, targetSeq + 2);
+                return;
+            }
+        }
+    }
+
+    // Consistent copy of a slot into the array, false if a writer kept it busy
+    private boolean read(int offset, long[] into) {
+        for (int attempt = 0; attempt < READ_RETRIES; attempt++) {
+            long seq = (long) LONG.getAcquire(buffer, offset + SEQ);
+            if ((seq & 1) != 0) {
+                Thread.onSpinWait();
+                continue;
+            }
+            into[MSB / 8] = (long) LONG.getOpaque(buffer, offset + MSB);
+            into[LSB / 8] = (long) LONG.getOpaque(buffer, offset + LSB);
+            into[CENTS / 8] = (long) LONG.getOpaque(buffer, offset + CENTS);
+            into[VERSION / 8] = (long) LONG.getOpaque(buffer, offset + VERSION);
+            VarHandle.acquireFence();
+            if ((long) LONG.getOpaque(buffer, offset + SEQ) == seq) {
+                into[SEQ / 8] = seq;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private int indexFor(long msb, long lsb) {
+        long hash = (msb ^ lsb) * 0x9E3779B97F4A7C15L;
+        return (int) (hash >>> 32);
+    }
+
+    private int offsetOf(int index) {
+        return HEADER_SIZE + (index & mask) * SLOT_SIZE;
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public int getSlots() {
+        return mask + 1;
+    }
+
+    public void close() {
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+            // The mapping stays valid until it is collected
+        }
+    }
+}
@@ -0,0 +1,237 @@
+package com.user404_.balsync;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Timings, counters and gauges of the sync pipeline, shown by /balsync status and written to
+ * {@code metrics.prom} (Prometheus text format) every {@code settings.metrics.interval} seconds.
+ * <p>
+ * Recording is a few LongAdder increments, so it can sit on every database call and every
+ * applied correction. Timers keep a histogram with power-of-two microsecond buckets (1 µs up to
+ * about 17 s); percentiles are read from it and are therefore upper bounds, at most 2x off.
+ */
+public class SyncMetrics {
+    private static final int BUCKETS = 25;
+
+    // "name{labels}" -> metric
+    private final Map<String, Timer> timers = new ConcurrentHashMap<>();
+    private final Map<String, LongAdder> counters = new ConcurrentHashMap<>();
+    private final Map<String, DoubleSupplier> gauges = new ConcurrentHashMap<>();
+    private final Map<String, String> help = new ConcurrentHashMap<>();
+
+    /** The timer for a name and label set, e.g. {@code timer("balsync_db_call", "op=\"get_balance\"")}. */
+    public Timer timer(String name, String labels) {
+        String key = key(name, labels);
+        Timer timer = timers.get(key);
+        return timer != null ? timer : timers.computeIfAbsent(key, k -> new Timer());
+    }
+
+    public Timer timer(String name) {
+        return timer(name, "");
+    }
+
+    public void increment(String name, String labels) {
+        String key = key(name, labels);
+        LongAdder counter = counters.get(key);
+        (counter != null ? counter : counters.computeIfAbsent(key, k -> new LongAdder())).increment();
+    }
+
+    public void increment(String name) {
+        increment(name, "");
+    }
+
+    public void gauge(String name, String labels, DoubleSupplier value) {
+        gauges.put(key(name, labels), value);
+    }
+
+    public void gauge(String name, DoubleSupplier value) {
+        gauge(name, "", value);
+    }
+
+    /** HELP line for the Prometheus file. */
+    public void describe(String name, String text) {
+        help.put(name, text);
+    }
+
+    public Map<String, Timer> getTimers() {
+        return new TreeMap<>(timers);
+    }
+
+    // Replace the file in one step, so a scraper never reads half of it
+    public void writeTo(File file) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        try (Writer writer = Files.newBufferedWriter(temp.toPath(), StandardCharsets.UTF_8)) {
+            writer.write(format());
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    String format() {
+        StringBuilder out = new StringBuilder(16 * 1024);
+        String lastName = null;
+        for (Map.Entry<String, Timer> entry : new TreeMap<>(timers).entrySet()) {
+            String name = nameOf(entry.getKey());
+            String labels = labelsOf(entry.getKey());
+            String metric = name + "_seconds";
+            if (!metric.equals(lastName)) {
+                header(out, metric, name, "histogram");
+                lastName = metric;
+            }
+            entry.getValue().format(out, metric, labels);
+        }
+        for (Map.Entry<String, LongAdder> entry : new TreeMap<>(counters).entrySet()) {
+            String name = nameOf(entry.getKey());
+            String metric = name + "_total";
+            if (!metric.equals(lastName)) {
+                header(out, metric, name, "counter");
+                lastName = metric;
+            }
+            sample(out, metric, labelsOf(entry.getKey()), entry.getValue().sum());
+        }
+        for (Map.Entry<String, DoubleSupplier> entry : new TreeMap<>(gauges).entrySet()) {
+            String name = nameOf(entry.getKey());
+            if (!name.equals(lastName)) {
+                header(out, name, name, "gauge");
+                lastName = name;
+            }
+            sample(out, name, labelsOf(entry.getKey()), entry.getValue().getAsDouble());
+        }
+        return out.toString();
+    }
+
+    private void header(StringBuilder out, String metric, String name, String type) {
+        String text = help.get(name);
+        if (text != null) {
+            out.append("# HELP ").append(metric).append(' ').append(text).append('\n');
+        }
+        out.append("# TYPE ").append(metric).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(StringBuilder out, String metric, String labels, double value) {
+        out.append(metric);
+        if (!labels.isEmpty()) {
+            out.append('{').append(labels).append('}');
+        }
+        out.append(' ').append(value == Math.rint(value) && !Double.isInfinite(value)
+                ? Long.toString((long) value) : Double.toString(value)).append('\n');
+    }
+
+    private static String key(String name, String labels) {
+        return labels.isEmpty() ? name : name + "{" + labels + "}";
+    }
+
+    private static String nameOf(String key) {
+        int brace = key.indexOf('{');
+        return brace < 0 ? key : key.substring(0, brace);
+    }
+
+    private static String labelsOf(String key) {
+        int brace = key.indexOf('{');
+        return brace < 0 ? "" : key.substring(brace + 1, key.length() - 1);
+    }
+
+    /** Latency histogram. */
+    public static final class Timer {
+        // Bucket i counts durations up to 2^i µs, the last one everything longer
+        private final LongAdder[] buckets = new LongAdder[BUCKETS + 1];
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sumNanos = new LongAdder();
+        private final AtomicLong maxNanos = new AtomicLong();
+
+        private Timer() {
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        /** Record the time since {@code startNanos} (from System.nanoTime()). */
+        public void recordSince(long startNanos) {
+            record(System.nanoTime() - startNanos);
+        }
+
+        public void record(long nanos) {
+            if (nanos < 0) {
+                return;
+            }
+            long micros = nanos / 1000;
+            int bucket = micros <= 1 ? 0 : 64 - Long.numberOfLeadingZeros(micros - 1);
+            buckets[Math.min(bucket, BUCKETS)].increment();
+            count.increment();
+            sumNanos.add(nanos);
+            if (nanos > maxNanos.get()) {
+                maxNanos.accumulateAndGet(nanos, Math::max);
+            }
+        }
+
+        public long getCount() {
+            return count.sum();
+        }
+
+        public double getMeanMillis() {
+            long n = count.sum();
+            return n == 0 ? 0 : sumNanos.sum() / (double) n / 1e6;
+        }
+
+        public double getMaxMillis() {
+            return maxNanos.get() / 1e6;
+        }
+
+        /** Upper bound of the bucket holding the given quantile (0..1), in milliseconds. */
+        public double getPercentileMillis(double quantile) {
+            long[] counts = snapshot();
+            long total = 0;
+            for (long c : counts) {
+                total += c;
+            }
+            if (total == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(quantile * total);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return Math.min((1L << i) / 1000.0, getMaxMillis());
+                }
+            }
+            return getMaxMillis();
+        }
+
+        private long[] snapshot() {
+            long[] counts = new long[buckets.length];
+            for (int i = 0; i < buckets.length; i++) {
+                counts[i] = buckets[i].sum();
+            }
+            return counts;
+        }
+
+        private void format(StringBuilder out, String metric, String labels) {
+            String prefix = labels.isEmpty() ? "" : labels + ",";
+            long[] counts = snapshot();
+            long cumulative = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                cumulative += counts[i];
+                out.append(metric).append("_bucket{").append(prefix).append("le=\"")
+                        .append(String.format(Locale.ROOT, "%.6f", (1L << i) / 1e6)).append("\"} ")
+                        .append(cumulative).append('\n');
+            }
+            cumulative += counts[BUCKETS];
+            out.append(metric).append("_bucket{").append(prefix).append("le=\"+Inf\"} ").append(cumulative).append('\n');
+            sample(out, metric + "_sum", labels, sumNanos.sum() / 1e9);
+            sample(out, metric + "_count", labels, cumulative);
+        }
+    }
+}
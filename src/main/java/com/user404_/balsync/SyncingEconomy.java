@@ -0,0 +1,283 @@
+package com.user404_.balsync;
+
+import net.milkbowl.vault.economy.Economy;
+import net.milkbowl.vault.economy.EconomyResponse;
+import org.bukkit.Bukkit;
+import org.bukkit.OfflinePlayer;
+
+import java.util.List;
+
+/**
+ * Vault economy provider that BalSync registers above the real one when
+ * {@code settings.economy-wrapper.enabled} is set. Every call is forwarded to the real economy;
+ * a successful deposit or withdrawal is handed to the {@link TransactionListener} right away, so
+ * the change reaches the delta writer without waiting for a scan or save cycle.
+ * <p>
+ * BalSync itself keeps using the real economy, so the balances it applies from the database are
+ * not recorded again. Plugins that looked up the provider before BalSync registered still talk to
+ * the real economy; their changes are picked up by the regular save cycle, or by the offline
+ * scan if auto-save is off.
+ */
+public class SyncingEconomy implements Economy {
+    private final Economy delegate;
+    private final TransactionListener listener;
+
+    public SyncingEconomy(Economy delegate, TransactionListener listener) {
+        this.delegate = delegate;
+        this.listener = listener;
+    }
+
+    public Economy getDelegate() {
+        return delegate;
+    }
+
+    // Report a successful transaction, amount is signed (negative for withdrawals)
+    private EconomyResponse record(OfflinePlayer player, double amount, EconomyResponse response) {
+        if (player != null && response != null && response.transactionSuccess()) {
+            listener.onTransaction(player, amount);
+        }
+        return response;
+    }
+
+    // The name variants must not trigger a profile lookup, so only players the server knows are recorded
+    private static OfflinePlayer byName(String playerName) {
+        return playerName == null ? null : Bukkit.getOfflinePlayerIfCached(playerName);
+    }
+
+    @Override
+    public EconomyResponse withdrawPlayer(OfflinePlayer player, double amount) {
+        return record(player, -amount, delegate.withdrawPlayer(player, amount));
+    }
+
+    @Override
+    public EconomyResponse withdrawPlayer(OfflinePlayer player, String worldName, double amount) {
+        return record(player, -amount, delegate.withdrawPlayer(player, worldName, amount));
+    }
+
+    @Override
+    @Deprecated
+    public EconomyResponse withdrawPlayer(String playerName, double amount) {
+        return record(byName(playerName), -amount, delegate.withdrawPlayer(playerName, amount));
+    }
+
+    @Override
+    @Deprecated
+    public EconomyResponse withdrawPlayer(String playerName, String worldName, double amount) {
+        return record(byName(playerName), -amount, delegate.withdrawPlayer(playerName, worldName, amount));
+    }
+
+    @Override
+    public EconomyResponse depositPlayer(OfflinePlayer player, double amount) {
+        return record(player, amount, delegate.depositPlayer(player, amount));
+    }
+
+    @Override
+    public EconomyResponse depositPlayer(OfflinePlayer player, String worldName, double amount) {
+        return record(player, amount, delegate.depositPlayer(player, worldName, amount));
+    }
+
+    @Override
+    @Deprecated
+    public EconomyResponse depositPlayer(String playerName, double amount) {
+        return record(byName(playerName), amount, delegate.depositPlayer(playerName, amount));
+    }
+
+    @Override
+    @Deprecated
+    public EconomyResponse depositPlayer(String playerName, String worldName, double amount) {
+        return record(byName(playerName), amount, delegate.depositPlayer(playerName, worldName, amount));
+    }
+
+    // Everything below is forwarded as is
+
+    @Override
+    public boolean isEnabled() {
+        return delegate.isEnabled();
+    }
+
+    @Override
+    public String getName() {
+        return delegate.getName();
+    }
+
+    @Override
+    public boolean hasBankSupport() {
+        return delegate.hasBankSupport();
+    }
+
+    @Override
+    public int fractionalDigits() {
+        return delegate.fractionalDigits();
+    }
+
+    @Override
+    public String format(double amount) {
+        return delegate.format(amount);
+    }
+
+    @Override
+    public String currencyNamePlural() {
+        return delegate.currencyNamePlural();
+    }
+
+    @Override
+    public String currencyNameSingular() {
+        return delegate.currencyNameSingular();
+    }
+
+    @Override
+    @Deprecated
+    public boolean hasAccount(String playerName) {
+        return delegate.hasAccount(playerName);
+    }
+
+    @Override
+    public boolean hasAccount(OfflinePlayer player) {
+        return delegate.hasAccount(player);
+    }
+
+    @Override
+    @Deprecated
+    public boolean hasAccount(String playerName, String worldName) {
+        return delegate.hasAccount(playerName, worldName);
+    }
+
+    @Override
+    public boolean hasAccount(OfflinePlayer player, String worldName) {
+        return delegate.hasAccount(player, worldName);
+    }
+
+    @Override
+    @Deprecated
+    public double getBalance(String playerName) {
+        return delegate.getBalance(playerName);
+    }
+
+    @Override
+    public double getBalance(OfflinePlayer player) {
+        return delegate.getBalance(player);
+    }
+
+    @Override
+    @Deprecated
+    public double getBalance(String playerName, String world) {
+        return delegate.getBalance(playerName, world);
+    }
+
+    @Override
+    public double getBalance(OfflinePlayer player, String world) {
+        return delegate.getBalance(player, world);
+    }
+
+    @Override
+    @Deprecated
+    public boolean has(String playerName, double amount) {
+        return delegate.has(playerName, amount);
+    }
+
+    @Override
+    public boolean has(OfflinePlayer player, double amount) {
+        return delegate.has(player, amount);
+    }
+
+    @Override
+    @Deprecated
+    public boolean has(String playerName, String worldName, double amount) {
+        return delegate.has(playerName, worldName, amount);
+    }
+
+    @Override
+    public boolean has(OfflinePlayer player, String worldName, double amount) {
+        return delegate.has(player, worldName, amount);
+    }
+
+    @Override
+    @Deprecated
+    public EconomyResponse createBank(String name, String player) {
+        return delegate.createBank(name, player);
+    }
+
+    @Override
+    public EconomyResponse createBank(String name, OfflinePlayer player) {
+        return delegate.createBank(name, player);
+    }
+
+    @Override
+    public EconomyResponse deleteBank(String name) {
+        return delegate.deleteBank(name);
+    }
+
+    @Override
+    public EconomyResponse bankBalance(String name) {
+        return delegate.bankBalance(name);
+    }
+
+    @Override
+    public EconomyResponse bankHas(String name, double amount) {
+        return delegate.bankHas(name, amount);
+    }
+
+    @Override
+    public EconomyResponse bankWithdraw(String name, double amount) {
+        return delegate.bankWithdraw(name, amount);
+    }
+
+    @Override
+    public EconomyResponse bankDeposit(String name, double amount) {
+        return delegate.bankDeposit(name, amount);
+    }
+
+    @Override
+    @Deprecated
+    public EconomyResponse isBankOwner(String name, String playerName) {
+        return delegate.isBankOwner(name, playerName);
+    }
+
+    @Override
+    public EconomyResponse isBankOwner(String name, OfflinePlayer player) {
+        return delegate.isBankOwner(name, player);
+    }
+
+    @Override
+    @Deprecated
+    public EconomyResponse isBankMember(String name, String playerName) {
+        return delegate.isBankMember(name, playerName);
+    }
+
+    @Override
+    public EconomyResponse isBankMember(String name, OfflinePlayer player) {
+        return delegate.isBankMember(name, player);
+    }
+
+    @Override
+    public List<String> getBanks() {
+        return delegate.getBanks();
+    }
+
+    @Override
+    @Deprecated
+    public boolean createPlayerAccount(String playerName) {
+        return delegate.createPlayerAccount(playerName);
+    }
+
+    @Override
+    public boolean createPlayerAccount(OfflinePlayer player) {
+        return delegate.createPlayerAccount(player);
+    }
+
+    @Override
+    @Deprecated
+    public boolean createPlayerAccount(String playerName, String worldName) {
+        return delegate.createPlayerAccount(playerName, worldName);
+    }
+
+    @Override
+    public boolean createPlayerAccount(OfflinePlayer player, String worldName) {
+        return delegate.createPlayerAccount(player, worldName);
+    }
+
+    @FunctionalInterface
+    public interface TransactionListener {
+        void onTransaction(OfflinePlayer player, double amount);
+    }
+}
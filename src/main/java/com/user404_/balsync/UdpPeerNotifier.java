@@ -0,0 +1,211 @@
+package com.user404_.balsync;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+
+/**
+ * {@link ChangeNotifier} over UDP: every server listens on {@code settings.change-notify.bind}
+ * and sends its notifications to each address in {@code settings.change-notify.peers}. Works on
+ * loopback, e.g. two servers on 127.0.0.1 with different ports.
+ * <p>
+ * Packet layout: magic (short), format (byte), sender epoch (long, random per start), sequence
+ * number (long), entry count (short) and the entries, each a UUID (2 longs) and the row version
+ * (long), at most {@link #MAX_ENTRIES} per packet. A jump in a peer's sequence numbers means
+ * packets were lost and is reported as a gap. Packets from addresses that aren't configured peers
+ * are ignored.
+ */
+public class UdpPeerNotifier implements ChangeNotifier {
+    private static final short MAGIC = (short) 0xBA5C;
+    // 1 carried no versions, such packets are dropped and the poll picks the change up
+    private static final byte FORMAT = 2;
+    private static final int HEADER_SIZE = 2 + 1 + 8 + 8 + 2;
+    private static final int ENTRY_SIZE = 16 + 8;
+    // Keeps a packet below the usual 1500 byte MTU
+    private static final int MAX_ENTRIES = 56;
+
+    private final BalSyncPlugin plugin;
+    private final long epoch = ThreadLocalRandom.current().nextLong();
+    private final AtomicLong seq = new AtomicLong();
+    private final List<InetSocketAddress> peers = new ArrayList<>();
+    private final Set<InetAddress> peerAddresses = new HashSet<>();
+    // Last epoch and sequence number per sender, only touched by the receiver thread
+    private final Map<SocketAddress, long[]> lastSeen = new HashMap<>();
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder received = new LongAdder();
+    private final LongAdder gaps = new LongAdder();
+    private DatagramChannel channel;
+    private Thread receiver;
+
+    public UdpPeerNotifier(BalSyncPlugin plugin) {
+        this.plugin = plugin;
+    }
+
+    @Override
+    public void start(Listener listener) throws IOException {
+        for (String peer : plugin.getConfigManager().getChangeNotifyPeers()) {
+            InetSocketAddress address = parseAddress(peer);
+            if (address == null || address.isUnresolved()) {
+                plugin.getPluginLogger().warning("Ignoring change-notify peer '" + peer + "', expected host:port.");
+                continue;
+            }
+            peers.add(address);
+            peerAddresses.add(address.getAddress());
+        }
+
+        String bind = plugin.getConfigManager().getChangeNotifyBind();
+        InetSocketAddress bindAddress = parseAddress(bind);
+        if (bindAddress == null) {
+            throw new IOException("Invalid change-notify bind address '" + bind + "', expected host:port");
+        }
+        channel = DatagramChannel.open();
+        channel.bind(bindAddress);
+
+        receiver = new Thread(() -> receive(listener), "BalSync-Notify");
+        receiver.setDaemon(true);
+        receiver.start();
+        plugin.getPluginLogger().info("Listening for balance change notifications on " + bindAddress +
+                ", " + peers.size() + " peers.");
+    }
+
+    @Override
+    public void publish(Map<UUID, Long> changed) {
+        if (changed.isEmpty() || peers.isEmpty() || channel == null) {
+            return;
+        }
+        ByteBuffer packet = ByteBuffer.allocate(HEADER_SIZE + MAX_ENTRIES * ENTRY_SIZE);
+        Iterator<Map.Entry<UUID, Long>> entries = changed.entrySet().iterator();
+        while (entries.hasNext()) {
+            packet.clear();
+            packet.putShort(MAGIC).put(FORMAT).putLong(epoch).putLong(seq.incrementAndGet());
+            int countAt = packet.position();
+            packet.putShort((short) 0);
+            short count = 0;
+            while (entries.hasNext() && count < MAX_ENTRIES) {
+                Map.Entry<UUID, Long> entry = entries.next();
+                UUID uuid = entry.getKey();
+                packet.putLong(uuid.getMostSignificantBits()).putLong(uuid.getLeastSignificantBits())
+                        .putLong(entry.getValue());
+                count++;
+            }
+            packet.putShort(countAt, count);
+            packet.flip();
+
+            for (InetSocketAddress peer : peers) {
+                try {
+                    channel.send(packet.duplicate(), peer);
+                    sent.increment();
+                } catch (IOException e) {
+                    // The peer notices the gap and polls
+                    plugin.getPluginLogger().log(Level.FINE, "Failed to notify " + peer, e);
+                }
+            }
+        }
+    }
+
+    private void receive(Listener listener) {
+        ByteBuffer packet = ByteBuffer.allocate(HEADER_SIZE + MAX_ENTRIES * ENTRY_SIZE);
+        while (channel.isOpen()) {
+            packet.clear();
+            SocketAddress from;
+            try {
+                from = channel.receive(packet);
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (IOException e) {
+                plugin.getPluginLogger().log(Level.WARNING, "Failed to receive a change notification", e);
+                continue;
+            }
+            packet.flip();
+            try {
+                handle(from, packet, listener);
+            } catch (RuntimeException e) {
+                plugin.getPluginLogger().log(Level.SEVERE, "Unexpected error handling a change notification", e);
+            }
+        }
+    }
+
+    private void handle(SocketAddress from, ByteBuffer packet, Listener listener) {
+        if (!(from instanceof InetSocketAddress address) || !peerAddresses.contains(address.getAddress())
+                || packet.remaining() < HEADER_SIZE || packet.getShort() != MAGIC || packet.get() != FORMAT) {
+            return;
+        }
+        long senderEpoch = packet.getLong();
+        long senderSeq = packet.getLong();
+        int count = packet.getShort();
+        if (senderEpoch == epoch || count < 0 || packet.remaining() < count * ENTRY_SIZE) {
+            // Our own packet (this server is in its peer list) or a broken one
+            return;
+        }
+
+        long[] last = lastSeen.get(from);
+        if (last == null || last[0] != senderEpoch) {
+            // New peer, or the peer restarted
+            lastSeen.put(from, new long[]{senderEpoch, senderSeq});
+        } else if (senderSeq <= last[1]) {
+            // Duplicate, or overtaken by a packet whose gap already triggered a poll
+            return;
+        } else {
+            if (senderSeq > last[1] + 1) {
+                gaps.increment();
+                listener.onGap();
+            }
+            last[1] = senderSeq;
+        }
+
+        received.increment();
+        for (int i = 0; i < count; i++) {
+            listener.onChanged(new UUID(packet.getLong(), packet.getLong()), packet.getLong());
+        }
+    }
+
+    @Override
+    public void close() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                plugin.getPluginLogger().log(Level.WARNING, "Failed to close the change notification socket", e);
+            }
+        }
+    }
+
+    @Override
+    public String getStatus() {
+        return "udp, " + peers.size() + " peers, sent " + sent.sum() + ", received " + received.sum() +
+                ", gaps " + gaps.sum();
+    }
+
+    // "host:port", the host may be a bracketed IPv6 address
+    private static InetSocketAddress parseAddress(String value) {
+        int colon = value == null ? -1 : value.lastIndexOf(':');
+        if (colon <= 0) {
+            return null;
+        }
+        String host = value.substring(0, colon);
+        if (host.startsWith("[") && host.endsWith("]")) {
+            host = host.substring(1, host.length() - 1);
+        }
+        try {
+            return new InetSocketAddress(host, Integer.parseInt(value.substring(colon + 1)));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+}
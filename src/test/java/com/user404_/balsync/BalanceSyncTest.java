@@ -0,0 +1,300 @@
+package com.user404_.balsync;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BalanceSyncTest {
+    private final UUID player = UUID.randomUUID();
+    // This server's economy
+    private final Map<UUID, Double> economy = new ConcurrentHashMap<>();
+    private final BalanceSync.Wallet wallet = new BalanceSync.Wallet() {
+        @Override
+        public double getBalance(UUID playerUUID) {
+            return economy.getOrDefault(playerUUID, 0.0);
+        }
+
+        @Override
+        public void add(UUID playerUUID, double amount) {
+            economy.merge(playerUUID, amount, (a, b) -> BalanceTracker.roundToCents(a + b));
+        }
+    };
+    private final FakeWriter writer = new FakeWriter();
+    // Amounts handed to the main thread and not applied yet
+    private final List<Double> corrections = new ArrayList<>();
+    private long now;
+    private double database;
+    // The row's version column
+    private long version;
+    private BalanceSync sync;
+
+    @BeforeEach
+    void setUp() {
+        now = 1_000_000;
+        sync = new BalanceSync(new BalanceTracker(() -> now), writer,
+                (uuid, amount, newDbBalance) -> corrections.add(amount), () -> now);
+        database = 1000;
+        version = 1;
+        economy.put(player, 500.0);
+        assertTrue(sync.applyLoadedBalance(wallet, player, database, tick(), false));
+        assertEquals(1000, economy.get(player), 1e-9);
+    }
+
+    @Test
+    void pollDuringPendingLocalDeltaKeepsTheDelta() {
+        // +100 here, still queued, while another server adds 5
+        deposit(100);
+        database += 5;
+
+        sync.handleDbBalance(player, database, tick());
+        applyCorrections();
+        assertEquals(1105, economy.get(player), 1e-9);
+
+        writer.flush();
+        assertTrue(corrections.isEmpty());
+        assertEquals(1105, database, 1e-9);
+        assertEquals(database, economy.get(player), 1e-9);
+    }
+
+    @Test
+    void readWhileTheWriteIsInFlightIsDeferred() {
+        deposit(100);
+        database += 5;
+        writer.take();
+        database += 100;
+
+        // The read has our write, the snapshot doesn't yet
+        assertFalse(sync.handleDbBalance(player, database, tick()));
+        assertTrue(corrections.isEmpty());
+        assertTrue(sync.getDeferred().contains(player));
+
+        // The other server's 5 show up with our commit
+        writer.confirm();
+        applyCorrections();
+        assertEquals(1105, economy.get(player), 1e-9);
+
+        sync.getDeferred().remove(player);
+        assertFalse(sync.handleDbBalance(player, database, tick()));
+        assertEquals(database, economy.get(player), 1e-9);
+    }
+
+    @Test
+    void readStartedBeforeOurCommitIsIgnored() {
+        long readStartedAt = tick();
+        double read = database;
+
+        deposit(40);
+        tick();
+        writer.flush();
+
+        assertFalse(sync.handleDbBalance(player, read, readStartedAt));
+        assertTrue(corrections.isEmpty());
+        assertEquals(1040, economy.get(player), 1e-9);
+        assertEquals(database, economy.get(player), 1e-9);
+    }
+
+    @Test
+    void olderOfTwoReadsIsIgnored() {
+        long firstRead = tick();
+        database += 30;
+        long secondRead = tick();
+
+        assertTrue(sync.handleDbBalance(player, database, secondRead));
+        assertFalse(sync.handleDbBalance(player, 1000, firstRead));
+        applyCorrections();
+        assertEquals(1030, economy.get(player), 1e-9);
+    }
+
+    @Test
+    void changeFromAnotherServerIsAppliedAfterOurWrite() {
+        deposit(10);
+        database -= 25;
+        writer.flush();
+
+        applyCorrections();
+        assertEquals(985, database, 1e-9);
+        assertEquals(database, economy.get(player), 1e-9);
+    }
+
+    @Test
+    void saveBeforeTheCorrectionIsAppliedWritesNothing() {
+        database += 50;
+        sync.handleDbBalance(player, database, tick());
+
+        // The correction waits for the main thread, the save cycle runs in between
+        assertEquals(0, sync.queueBalanceChange(player, "Player", () -> wallet.getBalance(player)), 1e-9);
+        applyCorrections();
+        assertEquals(0, sync.queueBalanceChange(player, "Player", () -> wallet.getBalance(player)), 1e-9);
+        assertEquals(0, writer.queued(), 1e-9);
+
+        economy.put(player, economy.get(player) - 20);
+        assertEquals(-20, sync.queueBalanceChange(player, "Player", () -> wallet.getBalance(player)), 1e-9);
+        writer.flush();
+        assertEquals(1030, database, 1e-9);
+        assertEquals(database, economy.get(player), 1e-9);
+    }
+
+    @Test
+    void concurrentSaveNeverWritesACorrectionBack() throws InterruptedException {
+        AtomicBoolean done = new AtomicBoolean();
+        Thread saver = new Thread(() -> {
+            while (!done.get()) {
+                sync.queueBalanceChange(player, "Player", () -> wallet.getBalance(player));
+            }
+        });
+        saver.start();
+        for (int i = 0; i < 20_000; i++) {
+            sync.applyCorrection(wallet, player, 1);
+        }
+        done.set(true);
+        saver.join();
+
+        assertEquals(0, writer.queued(), 1e-9);
+        assertEquals(21_000, economy.get(player), 1e-9);
+    }
+
+    @Test
+    void joinLoadWaitsForOwnDeltas() {
+        deposit(70);
+        assertFalse(sync.applyLoadedBalance(wallet, player, database, tick(), false));
+        assertEquals(1070, economy.get(player), 1e-9);
+
+        writer.flush();
+        assertTrue(sync.applyLoadedBalance(wallet, player, database, tick(), false));
+        assertEquals(1070, economy.get(player), 1e-9);
+    }
+
+    @Test
+    void joinLoadOlderThanTheLastWriteIsRejected() {
+        long readStartedAt = tick();
+        double read = database;
+        deposit(15);
+        tick();
+        writer.flush();
+
+        assertFalse(sync.applyLoadedBalance(wallet, player, read, readStartedAt, false));
+        assertEquals(1015, economy.get(player), 1e-9);
+    }
+
+    @Test
+    void notificationForAVersionOurWriteIncludesIsSkipped() {
+        // Another server's write, its notification is still on the way
+        database += 5;
+        long notified = ++version;
+        deposit(10);
+        writer.flush();
+
+        assertTrue(sync.hasSeenVersion(player, notified));
+        assertTrue(sync.hasSeenVersion(player, version));
+        assertFalse(sync.hasSeenVersion(player, version + 1));
+        assertFalse(sync.hasSeenVersion(player, 0));
+        applyCorrections();
+        assertEquals(database, economy.get(player), 1e-9);
+    }
+
+    @Test
+    void polledVersionCountsAsSeen() {
+        database += 12;
+        version = 7;
+        assertTrue(sync.handleDbBalance(player, database, tick(), version));
+
+        assertTrue(sync.hasSeenVersion(player, 7));
+        assertFalse(sync.hasSeenVersion(player, 8));
+    }
+
+    @Test
+    void unusedReadsDontCountAsSeen() {
+        long staleRead = tick();
+        deposit(1);
+        tick();
+        writer.flush();
+        assertFalse(sync.handleDbBalance(player, 1000, staleRead, 50));
+        assertFalse(sync.hasSeenVersion(player, 50));
+
+        deposit(1);
+        writer.take();
+        assertFalse(sync.handleDbBalance(player, database + 1, tick(), 60));
+        assertFalse(sync.hasSeenVersion(player, 60));
+    }
+
+    @Test
+    void transactionOfAnUntrackedPlayerQueuesTheAmount() {
+        UUID other = UUID.randomUUID();
+        economy.put(other, 80.0);
+        sync.recordTransaction(other, "Other", () -> wallet.getBalance(other), 30);
+        assertEquals(30, writer.queued(), 1e-9);
+    }
+
+    // A deposit made through the economy and recorded like SyncingEconomy does
+    private void deposit(double amount) {
+        wallet.add(player, amount);
+        sync.recordTransaction(player, "Player", () -> wallet.getBalance(player), amount);
+    }
+
+    private void applyCorrections() {
+        for (double amount : corrections) {
+            sync.applyCorrection(wallet, player, amount);
+        }
+        corrections.clear();
+    }
+
+    private long tick() {
+        return ++now;
+    }
+
+    // DeltaWriteQueue without threads: take() is the start of a flush, confirm() the commit
+    private final class FakeWriter implements BalanceSync.Writer {
+        private final Map<UUID, Double> pending = new ConcurrentHashMap<>();
+        private final Set<UUID> inFlight = ConcurrentHashMap.newKeySet();
+        private double taken;
+
+        @Override
+        public void enqueue(UUID playerUUID, String playerName, double delta) {
+            pending.merge(playerUUID, delta, Double::sum);
+        }
+
+        @Override
+        public boolean hasPending(UUID playerUUID) {
+            return pending.containsKey(playerUUID) || inFlight.contains(playerUUID);
+        }
+
+        @Override
+        public boolean isInFlight(UUID playerUUID) {
+            return inFlight.contains(playerUUID);
+        }
+
+        double queued() {
+            return pending.values().stream().mapToDouble(Double::doubleValue).sum();
+        }
+
+        void take() {
+            inFlight.add(player);
+            Double delta = pending.remove(player);
+            taken = delta != null ? delta : 0;
+        }
+
+        // The delta is in the database, the listener runs
+        void confirm() {
+            sync.onDeltaWritten(player, taken, database, version);
+            inFlight.remove(player);
+        }
+
+        void flush() {
+            take();
+            database += taken;
+            version++;
+            confirm();
+        }
+    }
+}
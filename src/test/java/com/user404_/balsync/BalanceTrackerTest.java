@@ -0,0 +1,186 @@
+package com.user404_.balsync;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BalanceTrackerTest {
+    private long now;
+    private BalanceTracker tracker;
+
+    @BeforeEach
+    void setUp() {
+        now = 1_000_000;
+        tracker = new BalanceTracker(() -> now);
+    }
+
+    @Test
+    void keepsBothSnapshotsPerPlayer() {
+        UUID uuid = UUID.randomUUID();
+        assertTrue(Double.isNaN(tracker.getServerBalance(uuid)));
+
+        tracker.setServerBalance(uuid, 10.5);
+        assertTrue(Double.isNaN(tracker.getDbBalance(uuid)));
+        assertTrue(Double.isNaN(tracker.swapDbBalance(uuid, 12.25)));
+        assertEquals(10.5, tracker.getServerBalance(uuid), 1e-9);
+        assertEquals(12.25, tracker.swapDbBalance(uuid, 3), 1e-9);
+        assertEquals(1, tracker.size());
+    }
+
+    @Test
+    void keepsTheHighestVersionOfUsedDatabaseBalances() {
+        UUID uuid = UUID.randomUUID();
+        assertEquals(0, tracker.getDbVersion(uuid));
+
+        tracker.setBoth(uuid, 1);
+        tracker.swapDbBalance(uuid, 2, 10, 5);
+        tracker.swapWrittenDbBalance(uuid, 3, 20, 4);
+        assertEquals(5, tracker.getDbVersion(uuid));
+        // Older read, neither balance nor version are used
+        assertEquals(BalanceTracker.STALE, tracker.swapDbBalance(uuid, 9, 15, 8));
+        assertEquals(5, tracker.getDbVersion(uuid));
+
+        now += 120_000;
+        tracker.evict(100, 60_000, id -> false);
+        tracker.setBoth(uuid, 1);
+        assertEquals(0, tracker.getDbVersion(uuid));
+    }
+
+    @Test
+    void expiresEntriesNotAccessedInTime() {
+        UUID idle = UUID.randomUUID();
+        UUID busy = UUID.randomUUID();
+        tracker.setBoth(idle, 1);
+        tracker.setBoth(busy, 2);
+
+        now += 50_000;
+        tracker.getServerBalance(busy);
+        now += 20_000;
+
+        assertEquals(1, tracker.evict(100, 60_000, uuid -> false));
+        assertTrue(Double.isNaN(tracker.getServerBalance(idle)));
+        assertEquals(2, tracker.getServerBalance(busy), 1e-9);
+        assertEquals(1, tracker.getExpiredEvictions());
+    }
+
+    @Test
+    void readsWithinTheTouchIntervalDontRefreshTheAccessTime() {
+        UUID uuid = UUID.randomUUID();
+        tracker.setBoth(uuid, 1);
+
+        now += 500;
+        tracker.getServerBalance(uuid);
+        // Still the time of setBoth, 500 ms before the cutoff
+        now += 60_000;
+        assertEquals(1, tracker.evict(100, 60_000, id -> false));
+    }
+
+    @Test
+    void evictsLeastRecentlyAccessedOverTheSizeLimit() {
+        List<UUID> players = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            UUID uuid = UUID.randomUUID();
+            players.add(uuid);
+            tracker.setBoth(uuid, i);
+            now += 10;
+        }
+        // The oldest one is read again and becomes the most recent
+        now += 2_000;
+        tracker.getDbBalance(players.get(0));
+
+        assertEquals(4, tracker.evict(6, 3_600_000, uuid -> false));
+        assertEquals(6, tracker.size());
+        assertEquals(0, tracker.getDbBalance(players.get(0)), 1e-9);
+        for (int i = 1; i <= 4; i++) {
+            assertTrue(Double.isNaN(tracker.getDbBalance(players.get(i))), "player " + i + " should be evicted");
+        }
+        for (int i = 5; i < 10; i++) {
+            assertEquals(i, tracker.getDbBalance(players.get(i)), 1e-9);
+        }
+        assertEquals(4, tracker.getSizeEvictions());
+    }
+
+    @Test
+    void keepsPinnedEntriesEvenOverTheLimit() {
+        UUID online = UUID.randomUUID();
+        UUID offline = UUID.randomUUID();
+        tracker.setBoth(online, 1);
+        tracker.setBoth(offline, 2);
+        now += 7_200_000;
+
+        assertEquals(1, tracker.evict(0, 3_600_000, Set.of(online)::contains));
+        assertEquals(1, tracker.size());
+        assertEquals(1, tracker.getServerBalance(online), 1e-9);
+        assertFalse(Double.isNaN(tracker.getDbBalance(online)));
+    }
+
+    @Test
+    void remainingEntriesAreFoundAfterRemovalsAndGrowth() {
+        // Enough players for every segment to resize and for long probe chains
+        List<UUID> players = new ArrayList<>();
+        for (int i = 0; i < 20_000; i++) {
+            UUID uuid = new UUID(i * 0x9E3779B97F4A7C15L, i);
+            players.add(uuid);
+            tracker.setBoth(uuid, i);
+        }
+        now += 10_000;
+        // Every other player stays, so the backward shift has to move entries around
+        for (int i = 0; i < players.size(); i += 2) {
+            tracker.getServerBalance(players.get(i));
+        }
+
+        assertEquals(10_000, tracker.evict(Integer.MAX_VALUE, 5_000, uuid -> false));
+        assertEquals(10_000, tracker.size());
+        for (int i = 0; i < players.size(); i++) {
+            double balance = tracker.getServerBalance(players.get(i));
+            if (i % 2 == 0) {
+                assertEquals(i, balance, 1e-9, "player " + i);
+            } else {
+                assertTrue(Double.isNaN(balance), "player " + i + " should be evicted");
+            }
+        }
+    }
+
+    @Test
+    void concurrentReadsAndWritesKeepTheEntries() throws InterruptedException {
+        // Real clock, so the readers refresh access times while the writers resize
+        BalanceTracker tracker = new BalanceTracker();
+        List<UUID> players = new ArrayList<>();
+        for (int i = 0; i < 1_000; i++) {
+            players.add(UUID.randomUUID());
+            tracker.setBoth(players.get(i), i);
+        }
+
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            int offset = t;
+            threads[t] = new Thread(() -> {
+                for (int round = 0; round < 200; round++) {
+                    for (int i = offset; i < players.size(); i += threads.length) {
+                        UUID uuid = players.get(i);
+                        tracker.getServerBalance(uuid);
+                        tracker.setServerBalance(uuid, i);
+                        // New players make the segments resize under the readers
+                        tracker.setDbBalance(UUID.randomUUID(), round);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        for (int i = 0; i < players.size(); i++) {
+            assertEquals(i, tracker.getServerBalance(players.get(i)), 1e-9);
+        }
+    }
+}